@@ -0,0 +1,70 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Strategy.allocate for each built-in strategy, from decoding the participant's data to recording the
+ * allocation with the in-memory stand-in. Identifiers cycle through the participant pool, so the stand-in
+ * holds at most BenchmarkTrials.POOL_SIZE participants however long a benchmark runs.
+ *
+ * blockCopies only changes BlockedRandomisation, where a block holds blockCopies of every arm.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AllocationBenchmark {
+
+	@Param({"SimpleRandomisation", "BlockedRandomisation", "Minimisation"})
+	public String method;
+
+	@Param({"2", "4", "8"})
+	public int arms;
+
+	@Param({"0", "2", "4"})
+	public int minimisationVariables;
+
+	@Param({"2", "5"})
+	public int levels;
+
+	@Param({"1", "8"})
+	public int blockCopies;
+
+	/* Two stratification variables, so there are levels * levels strata. */
+	private static final int STRATIFICATION_VARIABLES = 2;
+
+	private InMemoryDataManager database;
+	private Strategy strategy;
+	private String[] data;
+	private String[] identifiers;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		Trial trial = TrialLoader.parseTrial(BenchmarkTrials.definition(method, arms, STRATIFICATION_VARIABLES, minimisationVariables, levels, blockCopies));
+		trial.setName("benchmark");
+		trial.getParameters().put(Strategy.SEED_PARAMETER, 1.0);
+
+		database = new InMemoryDataManager();
+		database.registerTrial(trial);
+		strategy = trial.getAllocator(database);
+
+		data = BenchmarkTrials.participantData(STRATIFICATION_VARIABLES, minimisationVariables, levels, 1);
+		identifiers = new String[data.length];
+		for (int i = 0; i < identifiers.length; i++) {
+			identifiers[i] = Integer.toString(i);
+		}
+	}
+
+	@Benchmark
+	public Arm allocate() throws Exception {
+		int i = next++ & (BenchmarkTrials.POOL_SIZE - 1);
+		Participant participant = new Participant();
+		participant.setIdentifier(identifiers[i]);
+		participant.setData(data[i]);
+		return strategy.allocate(participant);
+	}
+}
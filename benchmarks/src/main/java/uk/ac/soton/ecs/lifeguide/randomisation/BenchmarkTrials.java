@@ -0,0 +1,77 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import java.util.*;
+import org.json.*;
+
+/**
+ * Builds the trial definitions and participant data the benchmarks run on. Every variable is categorical,
+ * with levels named "l0", "l1", ...; stratification variables are named s0, s1, ... and minimisation
+ * variables m0, m1, ....
+ */
+public class BenchmarkTrials {
+
+	/* Participants are drawn from a fixed pool, so data is not generated inside a benchmark. */
+	public static final int POOL_SIZE = 1 << 12;
+
+	public static String definition(String method, int arms, int stratificationVariables, int minimisationVariables, int levels, int blockCopies) {
+		JSONObject json = new JSONObject();
+		json.put("method", method);
+		if ("BlockedRandomisation".equals(method)) {
+			json.put("blocksize", blockCopies * arms);
+			json.put("delta", 0);
+		}
+		if ("Minimisation".equals(method)) {
+			json.put("certainty", 0.8);
+		}
+
+		JSONArray armList = new JSONArray();
+		for (int a = 0; a < arms; a++) {
+			JSONObject arm = new JSONObject();
+			arm.put("name", "arm" +a);
+			arm.put("weight", 1);
+			armList.put(arm);
+		}
+		json.put("arms", armList);
+
+		JSONArray variables = new JSONArray();
+		for (int v = 0; v < stratificationVariables; v++) {
+			variables.put(variable("s" +v, "stratification", levels));
+		}
+		for (int v = 0; v < minimisationVariables; v++) {
+			variables.put(variable("m" +v, "minimisation", levels));
+		}
+		json.put("variables", variables);
+		return json.toString();
+	}
+
+	private static JSONObject variable(String name, String type, int levels) {
+		JSONObject json = new JSONObject();
+		json.put("name", name);
+		json.put("type", type);
+		JSONArray strata = new JSONArray();
+		for (int l = 0; l < levels; l++) {
+			JSONObject stratum = new JSONObject();
+			stratum.put("value", "l" +l);
+			strata.put(stratum);
+		}
+		json.put("strata", strata);
+		return json;
+	}
+
+	/* POOL_SIZE participants' data, with every variable's level drawn uniformly. */
+	public static String[] participantData(int stratificationVariables, int minimisationVariables, int levels, long seed) {
+		Random random = new Random(seed);
+		String[] pool = new String[POOL_SIZE];
+		for (int i = 0; i < pool.length; i++) {
+			JSONObject data = new JSONObject();
+			for (int v = 0; v < stratificationVariables; v++) {
+				data.put("s" +v, "l" +random.nextInt(levels));
+			}
+			for (int v = 0; v < minimisationVariables; v++) {
+				data.put("m" +v, "l" +random.nextInt(levels));
+			}
+			pool[i] = data.toString();
+		}
+		return pool;
+	}
+}
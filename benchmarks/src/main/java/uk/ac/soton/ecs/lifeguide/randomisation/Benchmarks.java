@@ -0,0 +1,22 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.*;
+
+/**
+ * Runs the benchmarks with the GC profiler, so every result comes with its allocation rate; look at
+ * gc.alloc.rate.norm for bytes allocated per operation. Takes the usual JMH command line, e.g. a regular
+ * expression selecting benchmarks and -p to narrow a parameter.
+ */
+public class Benchmarks {
+
+	public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+		Options options = new OptionsBuilder()
+			.parent(new CommandLineOptions(args))
+			.addProfiler(GCProfiler.class)
+			.build();
+		new Runner(options).run();
+	}
+}
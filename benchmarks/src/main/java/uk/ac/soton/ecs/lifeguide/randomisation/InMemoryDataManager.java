@@ -0,0 +1,125 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import java.util.*;
+
+/**
+ * Stands in for the database in benchmarks, so they measure allocation rather than I/O. Trials are kept by
+ * name and each trial's allocations by identifier; counters are already held by the trial's parameters.
+ */
+public class InMemoryDataManager implements DataManager {
+
+	private final Map<String, Trial> trials = new HashMap<String, Trial>();
+	private final Map<String, Map<String, Participant>> participants = new HashMap<String, Map<String, Participant>>();
+
+	public void connect() {}
+	public void disconnect() {}
+
+	public synchronized Trial getTrial(String name) {
+		return trials.get(name);
+	}
+
+	public synchronized void registerTrial(Trial trial) {
+		trials.put(trial.getName(), trial);
+		participants.put(trial.getName(), new HashMap<String, Participant>());
+	}
+
+	public synchronized Participant getParticipant(String trialName, String identifier) {
+		Map<String, Participant> allocated = participants.get(trialName);
+		return allocated == null ? null : allocated.get(identifier);
+	}
+
+	public synchronized boolean participantExists(Trial trial, String identifier) {
+		return getParticipant(trial.getName(), identifier) != null;
+	}
+
+	public synchronized Set<String> findParticipants(Trial trial, Collection<String> identifiers) {
+		Set<String> found = new HashSet<String>();
+		for (String identifier : identifiers) {
+			if (participantExists(trial, identifier)) {
+				found.add(identifier);
+			}
+		}
+		return found;
+	}
+
+	public synchronized long countParticipants(Trial trial) {
+		Map<String, Participant> allocated = participants.get(trial.getName());
+		return allocated == null ? 0 : allocated.size();
+	}
+
+	public synchronized List<Participant> listParticipants(Trial trial, int first, int max) {
+		List<Participant> all = new ArrayList<Participant>(participants.get(trial.getName()).values());
+		return all.subList(Math.min(first, all.size()), Math.min(first + max, all.size()));
+	}
+
+	/* Counts by data rather than levels; the benchmarks never check counters. */
+	public synchronized List<AllocationCount> countAllocations(Trial trial) {
+		Map<List<Object>, long[]> counts = new HashMap<List<Object>, long[]>();
+		for (Participant p : participants.get(trial.getName()).values()) {
+			List<Object> key = Arrays.<Object>asList(p.getData(), p.getAllocatedArm());
+			long[] count = counts.get(key);
+			if (count == null) {
+				count = new long[1];
+				counts.put(key, count);
+			}
+			count[0]++;
+		}
+		List<AllocationCount> result = new ArrayList<AllocationCount>();
+		for (Map.Entry<List<Object>, long[]> e : counts.entrySet()) {
+			result.add(new AllocationCount(null, (String) e.getKey().get(0), (Arm) e.getKey().get(1), e.getValue()[0]));
+		}
+		return result;
+	}
+
+	public synchronized ParticipantCursor exportParticipants(Trial trial) {
+		final Iterator<Participant> all = new ArrayList<Participant>(participants.get(trial.getName()).values()).iterator();
+		return new ParticipantCursor() {
+			private Participant current;
+
+			public boolean next() {
+				current = all.hasNext() ? all.next() : null;
+				return current != null;
+			}
+
+			public String getIdentifier() { return current.getIdentifier(); }
+			public String getData() { return current.getData(); }
+			public String getLevels() { return null; }
+			public Arm getArm() { return current.getAllocatedArm(); }
+			public void close() {}
+		};
+	}
+
+	public synchronized void writeCounters(Trial trial, Map<String, Double> counters) {
+		trial.getParameters().putAll(counters);
+	}
+
+	public synchronized boolean update(Trial trial, Participant participant, Arm arm, Map<String, Double> counters) {
+		participant.setTrial(trial);
+		participant.setAllocatedArm(arm);
+		Map<String, Participant> allocated = participants.get(trial.getName());
+		if (allocated != null) {
+			allocated.put(participant.getIdentifier(), participant);
+		}
+		return true;
+	}
+
+	/* Drops the trial's participants, keeping the trial registered. */
+	public synchronized void clear(Trial trial) {
+		participants.put(trial.getName(), new HashMap<String, Participant>());
+	}
+
+	public void beginBatch() {}
+	public void commitBatch() {}
+	public void rollbackBatch() {}
+
+	public void beginImport(Trial trial) {}
+
+	public synchronized void importParticipants(Trial trial, List<Participant> participants) {
+		for (Participant p : participants) {
+			update(trial, p, p.getAllocatedArm(), Collections.<String, Double>emptyMap());
+		}
+	}
+
+	public void commitImport(Trial trial, Map<String, Double> counters) {}
+	public void rollbackImport() {}
+}
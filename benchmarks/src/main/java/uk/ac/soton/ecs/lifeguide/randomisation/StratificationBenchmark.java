@@ -0,0 +1,54 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Working out which stratum a participant's responses fall in, away from any strategy: the whole name
+ * with Trial.getStrata, and a single variable's level with Variable.getStratumNameForValue.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StratificationBenchmark {
+
+	@Param({"1", "2", "4"})
+	public int stratificationVariables;
+
+	@Param({"2", "5", "20"})
+	public int levels;
+
+	private Trial trial;
+	private Variable variable;
+	private String[] data;
+	private String[] values;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		trial = TrialLoader.parseTrial(BenchmarkTrials.definition("SimpleRandomisation", 2, stratificationVariables, 0, levels, 1));
+		variable = trial.getCompiled().getStratificationVariables().get(0);
+
+		data = BenchmarkTrials.participantData(stratificationVariables, 0, levels, 1);
+		values = new String[data.length];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = "l" +(i % levels);
+		}
+	}
+
+	/* A fresh participant each time, as the allocation path sees them, so responses are parsed every call. */
+	@Benchmark
+	public String getStrata() throws Exception {
+		Participant participant = new Participant();
+		participant.setData(data[next++ & (BenchmarkTrials.POOL_SIZE - 1)]);
+		return trial.getStrata(participant);
+	}
+
+	@Benchmark
+	public String getStratumNameForValue() throws Exception {
+		return variable.getStratumNameForValue(values[next++ & (BenchmarkTrials.POOL_SIZE - 1)]);
+	}
+}
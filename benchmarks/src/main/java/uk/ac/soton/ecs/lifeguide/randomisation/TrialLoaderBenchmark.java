@@ -0,0 +1,49 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/* TrialLoader.loadTrial reading and parsing a definition file, as the command line does for every call. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TrialLoaderBenchmark {
+
+	@Param({"2", "8"})
+	public int arms;
+
+	@Param({"1", "4", "16"})
+	public int variables;
+
+	@Param({"2", "20"})
+	public int levels;
+
+	private File path;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		path = File.createTempFile("trial", ".json");
+		path.deleteOnExit();
+		Writer out = new OutputStreamWriter(new FileOutputStream(path), "UTF-8");
+		try {
+			out.write(BenchmarkTrials.definition("Minimisation", arms, variables / 2, variables - variables / 2, levels, 1));
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		path.delete();
+	}
+
+	@Benchmark
+	public Trial loadTrial() throws Exception {
+		return TrialLoader.loadTrial(path.getPath());
+	}
+}
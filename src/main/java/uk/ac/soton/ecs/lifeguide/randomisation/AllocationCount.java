@@ -0,0 +1,25 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+/**
+ * The number of a trial's participants allocated to one arm with the same levels, as counted by the store.
+ * Participants stored before levels were kept are counted by their data instead, and levels is null.
+ */
+public class AllocationCount {
+
+	private final String levels;
+	private final String data;
+	private final Arm arm;
+	private final long count;
+
+	public AllocationCount(String levels, String data, Arm arm, long count) {
+		this.levels = levels;
+		this.data = data;
+		this.arm = arm;
+		this.count = count;
+	}
+
+	public String getLevels() { return levels; }
+	public String getData() { return data; }
+	public Arm getArm() { return arm; }
+	public long getCount() { return count; }
+}
@@ -0,0 +1,390 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import uk.ac.soton.ecs.lifeguide.randomisation.exception.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.json.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only log of allocation decisions, kept in a directory on local disk, so allocations can be
+ * made durable without a database round trip. The database is brought up to date afterwards from the
+ * journal by a JournalReplicator.
+ *
+ * The journal keeps the latest value of every counter it has seen for each trial. Every
+ * checkpointInterval entries these are written to a snapshot and a new journal segment is started.
+ * On opening, the latest snapshot is loaded and the entries after it are replayed, so recovery only
+ * reads the journal tail. Segments are deleted once they are covered by a snapshot and replicated.
+ *
+ * Directory layout:
+ *   journal-[first sequence].log   one JSON entry per line
+ *   snapshot.json                  {"sequence": n, "trials": {trial: {counter: value}}}
+ *   replicated                     the last sequence number written to the database
+ */
+public class AllocationJournal {
+
+	public static final int DEFAULT_CHECKPOINT_INTERVAL = 10000;
+
+	private static final Logger logger = LoggerFactory.getLogger(AllocationJournal.class);
+
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String SNAPSHOT = "snapshot.json";
+	private static final String REPLICATED = "replicated";
+
+	private final File directory;
+	private final boolean sync;
+	private final int checkpointInterval;
+
+	private final Map<String, Map<String, Double>> counters = new HashMap<String, Map<String, Double>>();
+	private final Map<String, Map<String, Entry>> pending = new HashMap<String, Map<String, Entry>>();
+	private final BlockingQueue<Entry> unreplicated = new LinkedBlockingQueue<Entry>();
+
+	private long sequence;
+	private long replicatedSequence;
+	private int sinceCheckpoint;
+	private FileOutputStream segment;
+	private Writer writer;
+
+	/* One allocation decision. */
+	public static class Entry {
+		public long sequence;
+		public String trial;
+		public String identifier;
+		public String data;
+		public String levels;
+		public String stratum;
+		public String arm;
+		public Map<String, Double> counters;
+
+		public JSONObject toJSON() {
+			JSONObject json = new JSONObject();
+			json.put("sequence", sequence);
+			json.put("trial", trial);
+			json.put("identifier", identifier);
+			json.put("data", data == null ? JSONObject.NULL : data);
+			json.put("levels", levels == null ? JSONObject.NULL : levels);
+			json.put("stratum", stratum);
+			json.put("arm", arm);
+			json.put("counters", new JSONObject(counters));
+			return json;
+		}
+
+		public static Entry fromJSON(JSONObject json) {
+			Entry e = new Entry();
+			e.sequence = json.getLong("sequence");
+			e.trial = json.getString("trial");
+			e.identifier = json.getString("identifier");
+			e.data = json.isNull("data") ? null : json.getString("data");
+			e.levels = json.isNull("levels") ? null : json.getString("levels");
+			e.stratum = json.getString("stratum");
+			e.arm = json.getString("arm");
+			e.counters = readCounters(json.getJSONObject("counters"));
+			return e;
+		}
+	}
+
+	public AllocationJournal(File directory, boolean sync) throws PersistenceException {
+		this(directory, sync, DEFAULT_CHECKPOINT_INTERVAL);
+	}
+
+	public AllocationJournal(File directory, boolean sync, int checkpointInterval) throws PersistenceException {
+		this.directory = directory;
+		this.sync = sync;
+		this.checkpointInterval = checkpointInterval;
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new PersistenceException("Cannot create journal directory " +directory);
+		}
+		try {
+			recover();
+			openSegment();
+		}
+		catch (IOException e) {
+			throw new PersistenceException("Could not open journal in " +directory, e);
+		}
+	}
+
+	/* Appends an allocation, returning once it is written (and forced to disk if the journal syncs). */
+	public synchronized long append(String trialName, Participant participant, String stratum, Arm arm, Map<String, Double> changed) throws PersistenceException {
+		Entry e = new Entry();
+		e.sequence = sequence + 1;
+		e.trial = trialName;
+		e.identifier = participant.getIdentifier();
+		e.data = participant.getData();
+		e.levels = participant.getLevels() == null ? null : joinLevels(participant.getLevels());
+		e.stratum = stratum;
+		e.arm = arm.getName();
+		e.counters = new HashMap<String, Double>(changed);
+
+		try {
+			writer.write(e.toJSON().toString());
+			writer.write('\n');
+			writer.flush();
+			if (sync) {
+				segment.getFD().sync();
+			}
+		}
+		catch (IOException ex) {
+			throw new PersistenceException("Could not write to journal", ex);
+		}
+
+		sequence = e.sequence;
+		apply(e);
+		addPending(e);
+		unreplicated.add(e);
+
+		if (++sinceCheckpoint >= checkpointInterval) {
+			try {
+				checkpoint();
+			}
+			catch (IOException ex) {
+				// the entry itself is safely journalled; try again at the next interval
+				logger.error("Journal checkpoint failed", ex);
+			}
+		}
+		return e.sequence;
+	}
+
+	/* The latest journalled counters of a trial, to be laid over what was loaded from the database. */
+	public synchronized Map<String, Double> getCounters(String trialName) {
+		Map<String, Double> trialCounters = counters.get(trialName);
+		return trialCounters == null ? new HashMap<String, Double>() : new HashMap<String, Double>(trialCounters);
+	}
+
+	/* Returns the journalled but not yet replicated allocation of a participant, or null. */
+	public synchronized Entry getPending(String trialName, String identifier) {
+		Map<String, Entry> trialPending = pending.get(trialName);
+		return trialPending == null ? null : trialPending.get(identifier);
+	}
+
+	/* Blocks until an entry needs replicating. */
+	public Entry takeUnreplicated() throws InterruptedException {
+		return unreplicated.take();
+	}
+
+	public synchronized void markReplicated(Entry e) {
+		Map<String, Entry> trialPending = pending.get(e.trial);
+		if (trialPending != null && trialPending.get(e.identifier) == e) {
+			trialPending.remove(e.identifier);
+		}
+		replicatedSequence = Math.max(replicatedSequence, e.sequence);
+
+		if (unreplicated.isEmpty() || e.sequence % 1000 == 0) {
+			try {
+				writeAtomically(new File(directory, REPLICATED), Long.toString(replicatedSequence));
+			}
+			catch (IOException ex) {
+				logger.error("Could not record replicated journal position", ex);
+			}
+		}
+	}
+
+	/* Writes a snapshot of every trial's counters and starts a new segment. */
+	public synchronized void checkpoint() throws IOException {
+		JSONObject trials = new JSONObject();
+		for (Map.Entry<String, Map<String, Double>> t : counters.entrySet()) {
+			trials.put(t.getKey(), new JSONObject(t.getValue()));
+		}
+		JSONObject snapshot = new JSONObject();
+		snapshot.put("sequence", sequence);
+		snapshot.put("trials", trials);
+		writeAtomically(new File(directory, SNAPSHOT), snapshot.toString());
+
+		writer.close();
+		openSegment();
+		sinceCheckpoint = 0;
+		deleteObsoleteSegments(sequence);
+	}
+
+	public synchronized void close() {
+		try {
+			writer.close();
+		}
+		catch (IOException e) {
+			logger.error("Could not close journal", e);
+		}
+	}
+
+	/* recovery */
+
+	private void recover() throws IOException {
+		long snapshotSequence = 0;
+		File snapshotFile = new File(directory, SNAPSHOT);
+		if (snapshotFile.exists()) {
+			JSONObject snapshot = new JSONObject(readFile(snapshotFile));
+			snapshotSequence = snapshot.getLong("sequence");
+			JSONObject trials = snapshot.getJSONObject("trials");
+			for (String name : JSONObject.getNames(trials) == null ? new String[0] : JSONObject.getNames(trials)) {
+				counters.put(name, readCounters(trials.getJSONObject(name)));
+			}
+		}
+
+		File replicatedFile = new File(directory, REPLICATED);
+		if (replicatedFile.exists()) {
+			replicatedSequence = Long.parseLong(readFile(replicatedFile).trim());
+		}
+
+		sequence = snapshotSequence;
+		for (File f : segments()) {
+			List<String> lines = new ArrayList<String>();
+			boolean torn = false;
+
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					Entry e;
+					try {
+						e = Entry.fromJSON(new JSONObject(line));
+					}
+					catch (JSONException ex) {
+						// a torn write at the end of a segment; nothing after it was acknowledged
+						logger.warn("Discarding unreadable journal entry in " +f.getName());
+						torn = true;
+						break;
+					}
+					lines.add(line);
+
+					if (e.sequence > snapshotSequence) {
+						apply(e);
+					}
+					if (e.sequence > replicatedSequence) {
+						addPending(e);
+						unreplicated.add(e);
+					}
+					sequence = Math.max(sequence, e.sequence);
+				}
+			}
+			finally {
+				in.close();
+			}
+
+			if (torn) {
+				StringBuilder sb = new StringBuilder();
+				for (String line : lines) {
+					sb.append(line).append('\n');
+				}
+				writeAtomically(f, sb.toString());
+			}
+		}
+	}
+
+	private void apply(Entry e) {
+		Map<String, Double> trialCounters = counters.get(e.trial);
+		if (trialCounters == null) {
+			trialCounters = new HashMap<String, Double>();
+			counters.put(e.trial, trialCounters);
+		}
+		trialCounters.putAll(e.counters);
+	}
+
+	private void addPending(Entry e) {
+		Map<String, Entry> trialPending = pending.get(e.trial);
+		if (trialPending == null) {
+			trialPending = new HashMap<String, Entry>();
+			pending.put(e.trial, trialPending);
+		}
+		trialPending.put(e.identifier, e);
+	}
+
+	/* segments */
+
+	private void openSegment() throws IOException {
+		segment = new FileOutputStream(new File(directory, SEGMENT_PREFIX +(sequence + 1) +SEGMENT_SUFFIX), true);
+		writer = new BufferedWriter(new OutputStreamWriter(segment, "UTF-8"));
+	}
+
+	private List<File> segments() {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		List<File> result = new ArrayList<File>(Arrays.asList(files));
+		Collections.sort(result, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long x = firstSequence(a);
+				long y = firstSequence(b);
+				return x < y ? -1 : (x == y ? 0 : 1);
+			}
+		});
+		return result;
+	}
+
+	private static long firstSequence(File f) {
+		String name = f.getName();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	/* A segment can go once the next one starts at or below both the snapshot and the replicated position. */
+	private void deleteObsoleteSegments(long snapshotSequence) {
+		long safe = Math.min(snapshotSequence, replicatedSequence);
+		List<File> files = segments();
+		for (int i = 0; i + 1 < files.size(); i++) {
+			if (firstSequence(files.get(i + 1)) - 1 <= safe) {
+				if (!files.get(i).delete()) {
+					logger.warn("Could not delete journal segment " +files.get(i).getName());
+				}
+			}
+		}
+	}
+
+	/* helpers */
+
+	private static Map<String, Double> readCounters(JSONObject json) {
+		Map<String, Double> result = new HashMap<String, Double>();
+		String[] names = JSONObject.getNames(json);
+		if (names != null) {
+			for (String name : names) {
+				result.put(name, json.getDouble(name));
+			}
+		}
+		return result;
+	}
+
+	private static String joinLevels(int[] levels) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < levels.length; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(levels[i]);
+		}
+		return sb.toString();
+	}
+
+	private static String readFile(File f) throws IOException {
+		Scanner scanner = new Scanner(f, "UTF-8");
+		try {
+			return scanner.useDelimiter("\\A").next();
+		}
+		finally {
+			scanner.close();
+		}
+	}
+
+	private void writeAtomically(File target, String content) throws IOException {
+		File temp = new File(directory, target.getName() +".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(content.getBytes("UTF-8"));
+			out.getFD().sync();
+		}
+		finally {
+			out.close();
+		}
+		if (!temp.renameTo(target)) {
+			// renameTo won't replace an existing file on every platform
+			target.delete();
+			if (!temp.renameTo(target)) {
+				throw new IOException("Could not replace " +target);
+			}
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Allocation counts and latencies, kept per trial and per strategy. Every allocation is recorded in both its
+ * trial's metrics and its strategy's.
+ *
+ * Metrics are always collected, which costs a few clock reads and atomic increments per allocation. They are
+ * only registered as MBeans, under uk.ac.soton.ecs.lifeguide.randomisation:type=AllocationMetrics, once
+ * registerMBeans() has been called, so a one-off command does not pay for starting JMX.
+ */
+public class AllocationMetrics implements AllocationMetricsMXBean {
+
+	private static final Logger logger = LoggerFactory.getLogger(AllocationMetrics.class);
+
+	public static final String DOMAIN = "uk.ac.soton.ecs.lifeguide.randomisation";
+
+	private static final ConcurrentMap<String, AllocationMetrics> metrics = new ConcurrentHashMap<String, AllocationMetrics>();
+	private static volatile MBeanServer server;
+
+	private final ObjectName name;
+
+	private final AtomicLong allocations = new AtomicLong();
+	private final AtomicLong trialFullFallbacks = new AtomicLong();
+	private final AtomicLong persistenceFailures = new AtomicLong();
+
+	private final LatencyHistogram load = new LatencyHistogram();
+	private final LatencyHistogram strata = new LatencyHistogram();
+	private final LatencyHistogram strategy = new LatencyHistogram();
+	private final LatencyHistogram commit = new LatencyHistogram();
+	private final LatencyHistogram total = new LatencyHistogram();
+
+	private AllocationMetrics(ObjectName name) {
+		this.name = name;
+	}
+
+	public static AllocationMetrics forTrial(String trialName) {
+		return get("trial", trialName);
+	}
+
+	public static AllocationMetrics forStrategy(String method) {
+		return get("strategy", method);
+	}
+
+	private static AllocationMetrics get(String key, String value) {
+		String id = key +"=" +ObjectName.quote(value);
+		AllocationMetrics m = metrics.get(id);
+		if (m == null) {
+			try {
+				m = new AllocationMetrics(new ObjectName(DOMAIN +":type=AllocationMetrics," +id));
+			}
+			catch (MalformedObjectNameException e) {
+				throw new IllegalArgumentException("Cannot name metrics for " +id, e);
+			}
+			AllocationMetrics existing = metrics.putIfAbsent(id, m);
+			if (existing != null) {
+				return existing;
+			}
+			if (server != null) {
+				register(server, m);
+			}
+		}
+		return m;
+	}
+
+	/* Registers every set of metrics, and any made from now on, with the platform MBean server. */
+	public static synchronized void registerMBeans() {
+		if (server != null) {
+			return;
+		}
+		server = ManagementFactory.getPlatformMBeanServer();
+		for (AllocationMetrics m : metrics.values()) {
+			register(server, m);
+		}
+	}
+
+	private static void register(MBeanServer server, AllocationMetrics m) {
+		try {
+			if (!server.isRegistered(m.name)) {
+				server.registerMBean(m, m.name);
+			}
+		}
+		catch (JMException e) {
+			logger.warn("Could not register " +m.name +": " +e.getMessage());
+		}
+	}
+
+	/* Records how long it took to fetch a trial and build its strategy. */
+	public static void recordLoad(Trial trial, long nanos) {
+		forTrial(trial.getName()).load.record(nanos);
+		forStrategy(trial.getStrategy()).load.record(nanos);
+	}
+
+	void recordAllocation(long strataNanos, long strategyNanos, long commitNanos, long totalNanos) {
+		allocations.incrementAndGet();
+		strata.record(strataNanos);
+		strategy.record(strategyNanos);
+		commit.record(commitNanos);
+		total.record(totalNanos);
+	}
+
+	void recordTrialFull() {
+		trialFullFallbacks.incrementAndGet();
+	}
+
+	void recordPersistenceFailure() {
+		persistenceFailures.incrementAndGet();
+	}
+
+	/* AllocationMetricsMXBean */
+
+	public long getAllocations() { return allocations.get(); }
+	public long getTrialFullFallbacks() { return trialFullFallbacks.get(); }
+	public long getPersistenceFailures() { return persistenceFailures.get(); }
+
+	public LatencySummary getLoadLatency() { return load.getSummary(); }
+	public LatencySummary getStrataLatency() { return strata.getSummary(); }
+	public LatencySummary getStrategyLatency() { return strategy.getSummary(); }
+	public LatencySummary getCommitLatency() { return commit.getSummary(); }
+	public LatencySummary getTotalLatency() { return total.getSummary(); }
+
+	public void reset() {
+		allocations.set(0);
+		trialFullFallbacks.set(0);
+		persistenceFailures.set(0);
+		load.reset();
+		strata.reset();
+		strategy.reset();
+		commit.reset();
+		total.reset();
+	}
+}
@@ -0,0 +1,28 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+/**
+ * Allocation counts and latencies for one trial, or for every trial using one strategy. Latencies are in
+ * nanoseconds and cover:
+ *   load - fetching the trial and building its strategy;
+ *   strata - working out the participant's stratum;
+ *   strategy - choosing an arm, once the stratum's lock is held;
+ *   commit - recording the allocation, with DataManager.update or the journal;
+ *   total - the whole allocation, from working out the stratum to the end of the commit, lock waits included.
+ */
+public interface AllocationMetricsMXBean {
+
+	public long getAllocations();
+
+	/* Participants given the default arm because every arm of the trial was at its limit. */
+	public long getTrialFullFallbacks();
+
+	public long getPersistenceFailures();
+
+	public LatencySummary getLoadLatency();
+	public LatencySummary getStrataLatency();
+	public LatencySummary getStrategyLatency();
+	public LatencySummary getCommitLatency();
+	public LatencySummary getTotalLatency();
+
+	public void reset();
+}
@@ -0,0 +1,313 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import uk.ac.soton.ecs.lifeguide.randomisation.exception.*;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.json.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Long running alternative to the one-shot CommandLineAPI. Listens on localhost and accepts
+ * POSTed JSON requests on /register_trial, /add_participant and /get_allocation, replying with
+ * the same JSON object that CommandLineAPI.main prints.
+ *
+ * The session factory, loaded trials and their strategies are kept between requests. Requests are
+ * handled in parallel; the strategy serialises allocations within a stratum, and each trial's commits
+ * are serialised by its DataManager.
+ *
+ * Loaded trials are kept in a TrialCache bounded by the randomisation.cache.trials and
+ * randomisation.cache.bytes system properties. Its statistics are served on /statistics.
+ *
+ * Given a journal directory, allocations are committed to an AllocationJournal and copied to the
+ * database in the background, and the journal's counters take precedence over the database's.
+ *
+ * Each loaded trial keeps a ParticipantIndex, so duplicate checks and /get_allocation do not query the
+ * database. Like the counters, it assumes the server is the only process allocating to a loaded trial.
+ */
+public class AllocationServer {
+
+	public static final int DEFAULT_PORT = 8642;
+	public static final int DEFAULT_THREADS = 16;
+
+	public static final String CACHE_TRIALS_PROPERTY = "randomisation.cache.trials";
+	public static final String CACHE_BYTES_PROPERTY = "randomisation.cache.bytes";
+	public static final int DEFAULT_CACHE_TRIALS = 256;
+	public static final long DEFAULT_CACHE_BYTES = 256L * 1024 * 1024;
+
+	private static final Logger logger = LoggerFactory.getLogger(AllocationServer.class);
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final TrialCache<TrialWorker> workers;
+	private final AllocationJournal journal;
+	private final JournalReplicator replicator;
+
+	public AllocationServer(int port, int threads) throws IOException, PersistenceException {
+		this(port, threads, null);
+	}
+
+	public AllocationServer(int port, int threads, File journalDirectory) throws IOException, PersistenceException {
+		// with the database backend, this builds the session factory up front rather than on the first request
+		DataManagerFactory.create();
+		AllocationMetrics.registerMBeans();
+
+		if (journalDirectory != null) {
+			journal = new AllocationJournal(journalDirectory, true);
+			replicator = new JournalReplicator(journal);
+		}
+		else {
+			journal = null;
+			replicator = null;
+		}
+
+		workers = new TrialCache<TrialWorker>(Integer.getInteger(CACHE_TRIALS_PROPERTY, DEFAULT_CACHE_TRIALS), Long.getLong(CACHE_BYTES_PROPERTY, DEFAULT_CACHE_BYTES)) {
+			protected TrialWorker load(String trialName) throws PersistenceException, InvalidTrialException {
+				return new TrialWorker(trialName, journal);
+			}
+
+			protected long sizeOf(TrialWorker worker) {
+				return worker.estimateSize();
+			}
+
+			protected void dispose(String trialName, TrialWorker worker) {
+				worker.close();
+			}
+		};
+
+		executor = Executors.newFixedThreadPool(threads);
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+		server.setExecutor(executor);
+
+		server.createContext("/" +CommandLineAPI.REGISTER_TRIAL, new CommandHandler() {
+			protected void handle(JSONObject request, JSONObject response) throws Exception {
+				String trialName = request.getString("trial");
+				Trial trial = TrialLoader.parseTrial(request.get("definition").toString());
+
+				CommandLineAPI api = new CommandLineAPI();
+				try {
+					api.connect();
+					response.put("message", api.registerTrial(trialName, trial));
+				}
+				finally {
+					api.disconnect();
+				}
+			}
+		});
+
+		server.createContext("/" +CommandLineAPI.ADD_PARTICIPANT, new CommandHandler() {
+			protected void handle(JSONObject request, JSONObject response) throws Exception {
+				String trialName = request.getString("trial");
+				String identifier = request.getString("identifier");
+				String data = request.has("data") ? request.get("data").toString() : null;
+
+				String result = addParticipant(trialName, identifier, data);
+				response.put("allocation", result);
+				response.put("message", identifier +" was allocated to " +result +" in " +trialName);
+			}
+		});
+
+		server.createContext("/" +CommandLineAPI.GET_ALLOCATION, new CommandHandler() {
+			protected void handle(JSONObject request, JSONObject response) throws Exception {
+				String trialName = request.getString("trial");
+				String identifier = request.getString("identifier");
+
+				String result = getAllocation(trialName, identifier);
+				response.put("allocation", result);
+				response.put("message", identifier +" is allocated to " +result +" in " +trialName);
+			}
+		});
+
+		server.createContext("/statistics", new CommandHandler() {
+			protected void handle(JSONObject request, JSONObject response) throws Exception {
+				response.put("cache", workers.getStatistics());
+			}
+		});
+	}
+
+	public void start() {
+		if (replicator != null) {
+			replicator.start();
+		}
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdown();
+		if (replicator != null) {
+			replicator.interrupt();
+			journal.close();
+		}
+		workers.clear();
+	}
+
+	private String addParticipant(String trialName, String identifier, String data) throws AllocationException, PersistenceException, InvalidTrialException {
+		TrialCache.Entry<TrialWorker> entry = workers.acquire(trialName);
+		try {
+			return entry.getValue().allocate(identifier, data).getName();
+		}
+		catch (PersistenceException e) {
+			// the worker's session has been reset, so its trial is no longer trustworthy
+			workers.invalidate(entry);
+			throw e;
+		}
+		finally {
+			workers.release(entry);
+		}
+	}
+
+	private String getAllocation(String trialName, String identifier) throws PersistenceException, InvalidTrialException {
+		TrialCache.Entry<TrialWorker> entry = workers.acquire(trialName);
+		try {
+			return entry.getValue().getAllocation(identifier);
+		}
+		finally {
+			workers.release(entry);
+		}
+	}
+
+	/* A loaded trial, its strategy, the index of its participants and the session they are attached to. */
+	private static class TrialWorker {
+
+		private final DataManager database;
+		private final AllocationJournal journal;
+		private final Trial trial;
+		private final Strategy strategy;
+		private volatile ParticipantIndex index;
+		private final Set<String> pending = new HashSet<String>();
+
+		public TrialWorker(String trialName, AllocationJournal journal) throws PersistenceException, InvalidTrialException {
+			this.journal = journal;
+			database = DataManagerFactory.create();
+			database.connect();
+
+			long start = System.nanoTime();
+			trial = database.getTrial(trialName);
+			if (trial == null) {
+				database.disconnect();
+				throw new PersistenceException("No such trial: "+ trialName);
+			}
+			if (journal != null) {
+				trial.getParameters().putAll(journal.getCounters(trialName));
+			}
+
+			strategy = trial.getAllocator(database);
+			strategy.setJournal(journal);
+			AllocationMetrics.recordLoad(trial, System.nanoTime() - start);
+		}
+
+		public Arm allocate(String identifier, String data) throws AllocationException, PersistenceException {
+			synchronized (pending) {
+				if (!pending.add(identifier)) {
+					throw new AllocationException(identifier +" is already being allocated.");
+				}
+			}
+
+			try {
+				// the journal holds allocations made before a restart that the database has not caught up with
+				if (getIndex().contains(identifier) || (journal != null && journal.getPending(trial.getName(), identifier) != null)) {
+					throw new AllocationException(identifier +" has already been allocated.");
+				}
+
+				Participant participant = new Participant();
+				participant.setIdentifier(identifier);
+				participant.setData(data);
+
+				Arm arm = strategy.allocate(participant);
+				if (participant.getAllocatedArm() != null) {
+					getIndex().put(identifier, arm);
+				}
+				return arm;
+			}
+			finally {
+				synchronized (pending) {
+					pending.remove(identifier);
+				}
+			}
+		}
+
+		public String getAllocation(String identifier) throws PersistenceException {
+			int order = getIndex().getArmOrder(identifier);
+			if (order >= 0) {
+				return trial.getCompiled().getArm(order).getName();
+			}
+			AllocationJournal.Entry entry = journal == null ? null : journal.getPending(trial.getName(), identifier);
+			if (entry != null) {
+				return entry.arm;
+			}
+			throw new PersistenceException("No such participant: " +identifier);
+		}
+
+		/* Filled on first use rather than in the constructor, so the scan holds up only this trial's callers. */
+		private ParticipantIndex getIndex() throws PersistenceException {
+			ParticipantIndex i = index;
+			if (i == null) {
+				synchronized (this) {
+					if (index == null) {
+						index = ParticipantIndex.load(database, trial);
+					}
+					i = index;
+				}
+			}
+			return i;
+		}
+
+		public long estimateSize() {
+			ParticipantIndex i = index;
+			return strategy.estimateSize() + (i == null ? 0 : i.estimateSize());
+		}
+
+		public void close() {
+			database.disconnect();
+		}
+	}
+
+	/* Turns a POSTed JSON object into the same response object CommandLineAPI.main prints. */
+	private static abstract class CommandHandler implements HttpHandler {
+
+		public void handle(HttpExchange exchange) throws IOException {
+			JSONObject response = new JSONObject();
+			response.put("command", exchange.getRequestURI().getPath());
+			int code = 200;
+
+			try {
+				Scanner scanner = new Scanner(exchange.getRequestBody(), "UTF-8").useDelimiter("\\A");
+				handle(new JSONObject(scanner.hasNext() ? scanner.next() : "{}"), response);
+				response.put("status", CommandLineAPI.COMMAND_SUCCESS);
+			}
+			catch (Exception e) {
+				StringWriter sw = new StringWriter();
+				e.printStackTrace(new PrintWriter(sw));
+				logger.error(sw.toString());
+
+				code = (e instanceof JSONException || e instanceof NoSuchElementException) ? 400 : 500;
+				response.put("status", CommandLineAPI.COMMAND_FAILURE);
+				response.put("message", e.getClass().getSimpleName() +": " +e.getMessage());
+				response.put("stacktrace", sw.toString());
+			}
+
+			byte[] bytes = response.toString().getBytes("UTF-8");
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			exchange.sendResponseHeaders(code, bytes.length);
+			OutputStream out = exchange.getResponseBody();
+			try {
+				out.write(bytes);
+			}
+			finally {
+				out.close();
+			}
+		}
+
+		protected abstract void handle(JSONObject request, JSONObject response) throws Exception;
+	}
+}
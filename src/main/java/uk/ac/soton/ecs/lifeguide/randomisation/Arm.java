@@ -1,15 +1,18 @@
 package uk.ac.soton.ecs.lifeguide.randomisation;
 
 import javax.persistence.*;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 @Entity
 @Table(name = "arms", uniqueConstraints=@UniqueConstraint(columnNames={"trial_id", "name"}))
+@Cache(usage=CacheConcurrencyStrategy.READ_ONLY)
 public class Arm {
 	@Id @GeneratedValue
 	@Column(name="id")
 	private int id;
 
-	@ManyToOne
+	@ManyToOne(fetch=FetchType.LAZY)
 	@JoinColumn(name="trial_id")
 	private Trial trial;
 
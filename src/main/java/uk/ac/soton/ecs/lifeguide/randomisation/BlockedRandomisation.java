@@ -7,69 +7,199 @@ import org.slf4j.LoggerFactory;
 import java.sql.SQLException;
 import java.util.*;
 
+/**
+ * Allocates in blocks of randomly varying size, each holding every arm in proportion to its weight.
+ *
+ * A block is dealt out without replacement: the i-th position of a block takes one of the slots still
+ * remaining, chosen uniformly by hashing the block's seed with i. Only a per-arm count of remaining slots
+ * is kept, so the next assignment takes time proportional to the number of arms, not the block size, and
+ * no block is ever built. The stored size, seed and counter are still all the state there is; after a
+ * reload the counts are rebuilt once by replaying the block up to its counter.
+ *
+ * Positions whose arm is full are skipped, and once no open arm has slots left the rest of the block is
+ * abandoned at once.
+ *
+ * Blocks started by earlier versions were shuffled with java.util.Random and have seeds in [0, 1); new
+ * seeds lie in [1, 2). An old block in progress is shuffled once and then finished in its original order.
+ */
 public class BlockedRandomisation extends Strategy {
 
 	private static final Logger logger = LoggerFactory.getLogger(BlockedRandomisation.class);
 
+	public static class Provider implements StrategyProvider {
+		public String getName() { return "BlockedRandomisation"; }
+
+		/* Block sizes are whole multiples of the total arm weight, so even the smallest block must hold one. */
+		public void validate(Trial trial) throws InvalidTrialException {
+			int totalWeight = trial.getTotalWeight();
+			double blockSize = StrategyRegistry.getParameter(trial, "blocksize", totalWeight, Integer.MAX_VALUE);
+			double delta = StrategyRegistry.getParameter(trial, "delta", 0.0, blockSize);
+
+			if ((int) Math.round(blockSize) / totalWeight - (int) Math.round(delta) / totalWeight < 1) {
+				throw new InvalidTrialException("blocksize - delta must be at least the total arm weight, " +totalWeight +".");
+			}
+		}
+
+		public Strategy create(Trial trial, DataManager database) {
+			return new BlockedRandomisation(trial, database);
+		}
+	}
+
+	/* Slots left per arm in each stratum's current block, valid up to positions[stratum] of the block seeded by seeds[stratum]. */
+	private final int[] remaining;
+	private final int[] positions;
+	private final long[] seeds;
+
+	/* The block and counter of each stratum's last choice, stored by acceptHelper once the arm is reserved. */
+	private final int[] chosenSizes;
+	private final long[] chosenSeeds;
+	private final int[] chosenCounters;
+
+	/* Block size and variation in copies of the total arm weight; the trial's parameters are written by other strata's commits, so they are read once here. */
+	private final int blockSize;
+	private final int delta;
+
+	/* Legacy blocks in progress, as arm orders, with the seed each was shuffled from. */
+	private final int[][] legacyBlocks;
+	private final long[] legacySeeds;
+
 	public BlockedRandomisation(Trial trial, DataManager database) {
 		super(trial, database);
-	}
 
-	protected Arm allocateHelper(Participant participant, String stratifiedEnum, List<Arm> openArms, Map<Arm, Integer> allocations) {
-		int totalWeight = trial.getTotalWeight();
-		
-		int actualSize = (int) Math.round(getStatistic("", stratifiedEnum, "size"));
-		long seed = Double.doubleToLongBits(getStatistic("", stratifiedEnum, "seed"));
-		int counter = (int) Math.round(getStatistic("", stratifiedEnum, "counter"));
-		
-		List<Arm> block;
-		Arm arm = null;
-
-		while (arm == null) {
-			// Allocate new block if previous full
-			if (counter >= actualSize) {
+		remaining = new int[compiled.getStrataCount() * compiled.getArmCount()];
+		positions = new int[compiled.getStrataCount()];
+		seeds = new long[compiled.getStrataCount()];
+		Arrays.fill(positions, -1);
+
+		legacyBlocks = new int[compiled.getStrataCount()][];
+		legacySeeds = new long[compiled.getStrataCount()];
+
+		chosenSizes = new int[compiled.getStrataCount()];
+		chosenSeeds = new long[compiled.getStrataCount()];
+		chosenCounters = new int[compiled.getStrataCount()];
 
-				int blockSize = (int) Math.round(parameters.get("blocksize")) / totalWeight;
-				int delta = (int) Math.round(parameters.get("delta")) / totalWeight;
-				actualSize = (blockSize - delta + random.nextInt(2 * delta + 1)) * totalWeight;
+		int totalWeight = compiled.getTotalWeight();
+		blockSize = (int) Math.round(parameters.get("blocksize")) / totalWeight;
+		delta = (int) Math.round(parameters.get("delta")) / totalWeight;
+	}
+
+	@Override
+	public long estimateSize() {
+		return super.estimateSize() + 4L * remaining.length + 28L * positions.length;
+	}
 
-				double serialisedSeed = random.nextDouble();
-				seed = Double.doubleToLongBits(serialisedSeed);
-				
-				setStatistic(stratifiedEnum, "", "size", Double.valueOf(actualSize));
-				setStatistic(stratifiedEnum, "", "seed", serialisedSeed);
+	protected Arm allocateHelper(Participant participant, int stratum, List<Arm> openArms, int[] allocations) {
+		RandomStream random = getRandom(stratum);
+		int size = counters.getBlockSize(stratum);
+		long seed = counters.getBlockSeed(stratum);
+		int counter = counters.getBlockCounter(stratum);
 
+		while (true) {
+			// Allocate new block if previous full
+			if (counter >= size) {
+				size = (blockSize - delta + random.nextInt(2 * delta + 1)) * compiled.getTotalWeight();
+				seed = Double.doubleToLongBits(1.0 + random.nextDouble());
 				counter = 0;
 			}
 
-			block = new ArrayList<Arm>(actualSize);
-			for (Arm a : trial.getArms()) {
-				for (int i = 0; i < a.getWeight() * (actualSize / totalWeight); i++) {
-					block.add(a);
+			int a;
+			if (isLegacy(seed)) {
+				a = getLegacyArm(stratum, size, seed, counter);
+			}
+			else {
+				if (!hasOpenSlots(stratum, size, seed, counter, allocations)) {
+					counter = size;
+					continue;
 				}
+				a = draw(stratum, size, seed);
 			}
-			Collections.shuffle(block, new Random(seed));
+			counter++;
 
-			while (arm == null && counter < actualSize) {
-				arm = block.get(counter);
-				counter++;
+			if (allocations[a] < compiled.getArmLimit(a)) {
+				chosenSizes[stratum] = size;
+				chosenSeeds[stratum] = seed;
+				chosenCounters[stratum] = counter;
+				return compiled.getArm(a);
+			}
+		}
+	}
 
-				if (allocations.get(arm) >= arm.getMaxParticipants()) {
-					arm = null;
-				}
+	/* A choice made again starts from the stored counter, and the slot counts are rebuilt up to it. */
+	@Override
+	protected void acceptHelper(Participant participant, int stratum, Arm arm) {
+		if (chosenSizes[stratum] != counters.getBlockSize(stratum) || chosenSeeds[stratum] != counters.getBlockSeed(stratum)) {
+			counters.setBlock(stratum, chosenSizes[stratum], chosenSeeds[stratum]);
+		}
+		counters.setBlockCounter(stratum, chosenCounters[stratum]);
+	}
+
+	/* An allocation made outside the current block leaves it unbalanced, so the stratum starts a new one. */
+	@Override
+	protected void recordHelper(Participant participant, int stratum, Arm arm) {
+		if (counters.getBlockCounter(stratum) < counters.getBlockSize(stratum)) {
+			counters.setBlockCounter(stratum, counters.getBlockSize(stratum));
+		}
+	}
+
+	/* Brings the stratum's remaining counts up to the given position of the block, then checks them against the open arms. */
+	private boolean hasOpenSlots(int stratum, int size, long seed, int counter, int[] allocations) {
+		int row = stratum * compiled.getArmCount();
+		if (seeds[stratum] != seed || positions[stratum] < 0 || positions[stratum] > counter) {
+			int copies = size / compiled.getTotalWeight();
+			for (int a = 0; a < compiled.getArmCount(); a++) {
+				remaining[row + a] = compiled.getArmWeight(a) * copies;
+			}
+			seeds[stratum] = seed;
+			positions[stratum] = 0;
+		}
+		while (positions[stratum] < counter) {
+			draw(stratum, size, seed);
+		}
+
+		for (int a = 0; a < compiled.getArmCount(); a++) {
+			if (remaining[row + a] > 0 && allocations[a] < compiled.getArmLimit(a)) {
+				return true;
 			}
 		}
+		return false;
+	}
+
+	/* Deals the slot at the stratum's current position, returning its arm order. */
+	private int draw(int stratum, int size, long seed) {
+		int row = stratum * compiled.getArmCount();
+		int position = positions[stratum]++;
+		int pick = (int) ((SplitMixStream.mix(seed + SplitMixStream.mix(position)) >>> 1) % (size - position));
+
+		int a = 0;
+		while (pick >= remaining[row + a]) {
+			pick -= remaining[row + a];
+			a++;
+		}
+		remaining[row + a]--;
+		return a;
+	}
 
-		setStatistic(stratifiedEnum, "", "counter", Double.valueOf(counter));
-		return arm;
+	private static boolean isLegacy(long seed) {
+		return Double.longBitsToDouble(seed) < 1.0;
 	}
 
-	private String getStatisticName(String statName, String strataName) {
-		String result = statName;
-		
-		if (!strataName.equals("")) {
-			result = "(" +strataName +") " +result;
-		} 
-		return result;
+	private int getLegacyArm(int stratum, int size, long seed, int position) {
+		if (legacyBlocks[stratum] == null || legacySeeds[stratum] != seed) {
+			List<Arm> block = new ArrayList<Arm>(size);
+			for (Arm a : compiled.getArms()) {
+				for (int i = 0; i < a.getWeight() * (size / compiled.getTotalWeight()); i++) {
+					block.add(a);
+				}
+			}
+			Collections.shuffle(block, new Random(seed));
+
+			int[] arms = new int[size];
+			for (int i = 0; i < size; i++) {
+				arms[i] = block.get(i).getArmOrder();
+			}
+			legacyBlocks[stratum] = arms;
+			legacySeeds[stratum] = seed;
+		}
+		return legacyBlocks[stratum][position];
 	}
 }
@@ -0,0 +1,121 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import java.util.*;
+import org.hibernate.cache.Cache;
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.CacheProvider;
+import org.hibernate.cache.Timestamper;
+import org.hibernate.cache.UpdateTimestampsCache;
+
+/**
+ * A second-level cache provider that keeps each region in memory, like Hibernate's HashtableCacheProvider,
+ * but holds at most hibernate.cache.max_entries_per_region entries in each, dropping the least recently
+ * used. A long-running server registering trials would otherwise grow the entity and query caches
+ * without limit.
+ *
+ * The update timestamps region is never trimmed: it holds one entry per table, and a query result is
+ * only known to be stale while its tables' timestamps are kept.
+ */
+public class BoundedCacheProvider implements CacheProvider {
+
+	public static final String MAX_ENTRIES_PROPERTY = "hibernate.cache.max_entries_per_region";
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+	private int maxEntries = DEFAULT_MAX_ENTRIES;
+
+	public void start(Properties properties) throws CacheException {
+		String value = properties.getProperty(MAX_ENTRIES_PROPERTY);
+		if (value != null) {
+			try {
+				maxEntries = Integer.parseInt(value.trim());
+			}
+			catch (NumberFormatException e) {
+				throw new CacheException(MAX_ENTRIES_PROPERTY +" is not a number: " +value);
+			}
+			if (maxEntries < 1) {
+				throw new CacheException(MAX_ENTRIES_PROPERTY +" must be at least 1, not " +maxEntries);
+			}
+		}
+	}
+
+	public void stop() {
+	}
+
+	public Cache buildCache(String regionName, Properties properties) throws CacheException {
+		return new Region(regionName, regionName.equals(UpdateTimestampsCache.REGION_NAME) ? Integer.MAX_VALUE : maxEntries);
+	}
+
+	public long nextTimestamp() {
+		return Timestamper.next();
+	}
+
+	public boolean isMinimalPutsEnabledByDefault() {
+		return false;
+	}
+
+	/* One region, least recently used first. */
+	private static class Region implements Cache {
+
+		private final String name;
+		private final LinkedHashMap<Object, Object> entries;
+
+		public Region(String name, final int maxEntries) {
+			this.name = name;
+			entries = new LinkedHashMap<Object, Object>(16, 0.75f, true) {
+				protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+					return size() > maxEntries;
+				}
+			};
+		}
+
+		public synchronized Object read(Object key) { return entries.get(key); }
+		public synchronized Object get(Object key) { return entries.get(key); }
+		public synchronized void put(Object key, Object value) { entries.put(key, value); }
+		public synchronized void update(Object key, Object value) { entries.put(key, value); }
+		public synchronized void remove(Object key) { entries.remove(key); }
+		public synchronized void clear() { entries.clear(); }
+
+		public void destroy() {
+		}
+
+		/* Locking is left to the concurrency strategy, as in HashtableCache. */
+		public void lock(Object key) {
+		}
+
+		public void unlock(Object key) {
+		}
+
+		public long nextTimestamp() {
+			return Timestamper.next();
+		}
+
+		public int getTimeout() {
+			// 60 seconds, in Timestamper's units
+			return Timestamper.ONE_MS * 60000;
+		}
+
+		public String getRegionName() {
+			return name;
+		}
+
+		public long getSizeInMemory() {
+			return -1;
+		}
+
+		public synchronized long getElementCountInMemory() {
+			return entries.size();
+		}
+
+		public long getElementCountOnDisk() {
+			return 0;
+		}
+
+		public synchronized Map<Object, Object> toMap() {
+			return new HashMap<Object, Object>(entries);
+		}
+
+		public String toString() {
+			return "BoundedCache(" +name +')';
+		}
+	}
+}
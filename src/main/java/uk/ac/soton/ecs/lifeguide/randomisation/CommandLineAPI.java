@@ -14,11 +14,23 @@ public class CommandLineAPI {
 
 	public static final String REGISTER_TRIAL = "register_trial";
 	public static final String ADD_PARTICIPANT = "add_participant";
+	public static final String ADD_PARTICIPANTS = "add_participants";
+	public static final String IMPORT_PARTICIPANTS = "import_participants";
 	public static final String SPAM_PARTICIPANTS = "spam";
 	public static final String GET_ALLOCATION = "get_allocation";
+	public static final String SERVE = "serve";
+	public static final String GENERATE_ENVELOPES = "generate_envelopes";
+	public static final String OPEN_ENVELOPE = "open_envelope";
+	public static final String RECONCILE_ENVELOPES = "reconcile_envelopes";
+	public static final String SIMULATE = "simulate";
+	public static final String VERIFY_TRIAL = "verify_trial";
+	public static final String REBUILD_COUNTERS = "rebuild_counters";
+	public static final String EXPORT_TRIAL = "export_trial";
 	public static final String COMMAND_FAILURE = "failure";
 	public static final String COMMAND_SUCCESS = "success";
 
+	public static final int DEFAULT_IMPORT_CHUNK = 1000;
+
 	private static final Logger logger = LoggerFactory.getLogger(CommandLineAPI.class);
 	private DataManager database;
 
@@ -30,8 +42,24 @@ public class CommandLineAPI {
 	}
 
 	public static void main(String[] args) {
+		if (args.length > 0 && args[0].equals(SERVE)) {
+			serve(args);
+			return;
+		}
+		if (args.length > 0 && args[0].equals(OPEN_ENVELOPE)) {
+			// sites open envelopes without a database
+			openEnvelope(args);
+			return;
+		}
+		if (args.length > 0 && args[0].equals(SIMULATE)) {
+			simulate(args);
+			return;
+		}
+
 		JSONObject json = new JSONObject();
 		json.put("command", Arrays.toString(args));
+		// an export to stdout keeps it for the participants
+		PrintStream report = System.out;
 
 		CommandLineAPI api = new CommandLineAPI();
 		try {
@@ -63,6 +91,30 @@ public class CommandLineAPI {
 				json.put("allocation", result);
 				json.put("message", args[2] +" was allocated to " +result +" in " +args[1]);
 			}
+			if (args[0].equals(ADD_PARTICIPANTS)) {
+				if (args.length < 2 || args.length > 4) {
+					throw new BadCommandException("Usage: " + ADD_PARTICIPANTS +" trial_name [ndjson_path|-] [chunk_size]");
+				}
+				Reader in;
+				if (args.length > 2 && !args[2].equals("-")) {
+					in = new FileReader(args[2]);
+				}
+				else {
+					in = new InputStreamReader(System.in, "UTF-8");
+				}
+				int chunkSize = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+
+				json.put("message", api.addParticipants(args[1], new BufferedReader(in), System.out, chunkSize));
+			}
+
+			if (args[0].equals(IMPORT_PARTICIPANTS)) {
+				if (args.length < 3 || args.length > 4) {
+					throw new BadCommandException("Usage: " +IMPORT_PARTICIPANTS +" trial_name csv_or_ndjson_path [chunk_size]");
+				}
+				int chunkSize = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_IMPORT_CHUNK;
+				json.put("message", api.importParticipants(args[1], new File(args[2]), chunkSize));
+			}
+
 			if (args[0].equals(GET_ALLOCATION)) {
 				if (args.length != 3) {
 					throw new BadCommandException("Usage: " +GET_ALLOCATION +" trial_name participant_identifier");
@@ -74,6 +126,56 @@ public class CommandLineAPI {
 				}
 			}
 
+			if (args[0].equals(GENERATE_ENVELOPES)) {
+				if (args.length < 4 || args.length > 5) {
+					throw new BadCommandException("Usage: " +GENERATE_ENVELOPES +" trial_name output_path envelopes_per_stratum [threads]");
+				}
+				int threads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+				json.put("message", api.generateEnvelopes(args[1], args[2], Integer.parseInt(args[3]), threads));
+			}
+
+			if (args[0].equals(RECONCILE_ENVELOPES)) {
+				if (args.length != 3) {
+					throw new BadCommandException("Usage: " +RECONCILE_ENVELOPES +" trial_name envelope_log_path");
+				}
+				json.put("message", api.reconcileEnvelopes(args[1], args[2]));
+			}
+
+			if (args[0].equals(VERIFY_TRIAL) || args[0].equals(REBUILD_COUNTERS)) {
+				if (args.length != 2) {
+					throw new BadCommandException("Usage: " +args[0] +" trial_name");
+				}
+				boolean rebuild = args[0].equals(REBUILD_COUNTERS);
+				JSONArray drift = api.checkCounters(args[1], rebuild);
+				json.put("drift", drift);
+				if (rebuild) {
+					json.put("message", drift.length() +" counters of " +args[1] +" rebuilt");
+				}
+				else {
+					json.put("message", drift.length() +" counters of " +args[1] +" differ from its participants");
+				}
+			}
+
+			if (args[0].equals(EXPORT_TRIAL)) {
+				if (args.length < 3 || args.length > 5) {
+					throw new BadCommandException("Usage: " +EXPORT_TRIAL +" trial_name csv|ndjson [output_path|-] [field,...]");
+				}
+				if (!args[2].equalsIgnoreCase("csv") && !args[2].equalsIgnoreCase("ndjson")) {
+					throw new BadCommandException("Unknown export format " +args[2] +", not csv or ndjson.");
+				}
+				OutputStream out;
+				if (args.length > 3 && !args[3].equals("-")) {
+					out = new FileOutputStream(args[3]);
+				}
+				else {
+					out = System.out;
+					report = System.err;
+				}
+				List<String> fields = args.length > 4 ? Arrays.asList(args[4].split(",")) : null;
+
+				json.put("message", api.exportTrial(args[1], args[2], new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 1 << 16), fields));
+			}
+
 			if (args[0].equals(SPAM_PARTICIPANTS)) {
 				if (args.length == 3) {
 					result = api.spamParticipants(args[1], Integer.parseInt(args[2]));
@@ -96,12 +198,93 @@ public class CommandLineAPI {
 			api.disconnect();	
 		}
 		
+		report.println(json.toString());
+	}
+
+	private static void serve(String[] args) {
+		try {
+			if (args.length > 4) {
+				throw new BadCommandException("Usage: " +SERVE +" [port] [threads] [journal_directory]");
+			}
+			int port = args.length > 1 ? Integer.parseInt(args[1]) : AllocationServer.DEFAULT_PORT;
+			int threads = args.length > 2 ? Integer.parseInt(args[2]) : AllocationServer.DEFAULT_THREADS;
+			File journal = args.length > 3 ? new File(args[3]) : null;
+
+			new AllocationServer(port, threads, journal).start();
+			logger.info("Allocation server listening on port " +port);
+		}
+		catch (Exception e) {
+			JSONObject json = new JSONObject();
+			json.put("command", Arrays.toString(args));
+			json.put("status", COMMAND_FAILURE);
+			json.put("message", e.getClass().getSimpleName() +": " +e.getMessage());
+			json.put("stacktrace", stackTraceToString(e));
+			System.out.println(json.toString());
+		}
+	}
+
+	private static void openEnvelope(String[] args) {
+		JSONObject json = new JSONObject();
+		json.put("command", Arrays.toString(args));
+
+		try {
+			if (args.length < 4 || args.length > 5) {
+				throw new BadCommandException("Usage: " +OPEN_ENVELOPE +" envelope_path envelope_log_path participant_identifier [data_path]");
+			}
+			String data = args.length > 4 ? new Scanner(new File(args[4])).useDelimiter("\\A").next() : null;
+
+			EnvelopeFile envelopes = new EnvelopeFile(new File(args[1]));
+			try {
+				String result = new EnvelopeLog(new File(args[2])).open(envelopes, args[3], data);
+				json.put("allocation", result);
+				json.put("message", args[3] +" was allocated to " +result +" in " +envelopes.getTrialName());
+			}
+			finally {
+				envelopes.close();
+			}
+			json.put("status", COMMAND_SUCCESS);
+		}
+		catch (Exception e) {
+			String s = stackTraceToString(e);
+			logger.error(s);
+			json.put("status", COMMAND_FAILURE);
+			json.put("message", e.getClass().getSimpleName() +": " +e.getMessage());
+			json.put("stacktrace", s);
+		}
+
+		System.out.println(json.toString());
+	}
+
+	private static void simulate(String[] args) {
+		JSONObject json = new JSONObject();
+		json.put("command", Arrays.toString(args));
+
+		try {
+			if (args.length < 5 || args.length > 7) {
+				throw new BadCommandException("Usage: " +SIMULATE +" definition_path covariates_path participants replicates [threads] [seed]");
+			}
+			String definition = new Scanner(new File(args[1])).useDelimiter("\\A").next();
+			JSONObject distribution = new JSONObject(new Scanner(new File(args[2])).useDelimiter("\\A").next());
+			int threads = args.length > 5 ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+			long seed = args.length > 6 ? Long.parseLong(args[6]) : Strategy.newSeed();
+
+			json.put("simulation", new Simulator(definition, distribution).run(Integer.parseInt(args[3]), Integer.parseInt(args[4]), threads, seed));
+			json.put("status", COMMAND_SUCCESS);
+		}
+		catch (Exception e) {
+			String s = stackTraceToString(e);
+			logger.error(s);
+			json.put("status", COMMAND_FAILURE);
+			json.put("message", e.getClass().getSimpleName() +": " +e.getMessage());
+			json.put("stacktrace", s);
+		}
+
 		System.out.println(json.toString());
 	}
 
 	// mrt - don't really need an instance of this class......
 	public void connect() throws PersistenceException {
-		database = new DataManager();
+		database = DataManagerFactory.create();
 		database.connect();
 	}
 
@@ -113,9 +296,17 @@ public class CommandLineAPI {
 
 	/* study functions */
 	public String registerTrial(String trialName, String definitionPath) throws PersistenceException, InvalidTrialException, FileNotFoundException {
+		return registerTrial(trialName, TrialLoader.loadTrial(definitionPath));
+	}
+
+	public String registerTrial(String trialName, Trial trial) throws PersistenceException, InvalidTrialException {
+
+		StrategyRegistry.validate(trial);
+		if (!trial.getParameters().containsKey(Strategy.SEED_PARAMETER)) {
+			trial.getParameters().put(Strategy.SEED_PARAMETER, (double) Strategy.newSeed());
+		}
 
 		if (database.getTrial(trialName) == null) {
-			Trial trial = TrialLoader.loadTrial(definitionPath);
 			trial.setName(trialName);
 			database.registerTrial(trial);
 			// mrt - do success message
@@ -134,16 +325,6 @@ public class CommandLineAPI {
 
 	/* participant functions */
 	public String addParticipant(String trialName, String participantIdentifier, String dataPath) throws AllocationException, PersistenceException, InvalidTrialException, FileNotFoundException {
-		Trial trial = database.getTrial(trialName);
-		if (trial == null) {
-			throw new PersistenceException("No such trial: "+ trialName);
-		}
-
-		Participant participant = database.getParticipant(trialName, participantIdentifier);
-		if (participant != null) {
-			throw new AllocationException(participantIdentifier +" has already been allocated.");
-		}
-
 		String data;
 
 		if (dataPath != null) {
@@ -153,30 +334,359 @@ public class CommandLineAPI {
 			data = null;
 		}
 
-		Random r = new Random();
-		data = "{'height': '" + (50+r.nextInt(100)) +"', 'weight': '"+(25+r.nextInt(100)) +"', 'isAlpaca': '"+ (r.nextInt(2) > 0 ? "yes" : "no") +"'}";
+		return addParticipantWithData(trialName, participantIdentifier, data);
+	}
 
-		System.out.println(data);
+	public String addParticipantWithData(String trialName, String participantIdentifier, String data) throws AllocationException, PersistenceException, InvalidTrialException {
+		long start = System.nanoTime();
+		Trial trial = database.getTrial(trialName);
+		if (trial == null) {
+			throw new PersistenceException("No such trial: "+ trialName);
+		}
+		Strategy strategy = trial.getAllocator(database);
+		AllocationMetrics.recordLoad(trial, System.nanoTime() - start);
+
+		if (database.participantExists(trial, participantIdentifier)) {
+			throw new AllocationException(participantIdentifier +" has already been allocated.");
+		}
 
-		participant = new Participant();
+		Participant participant = new Participant();
 		participant.setIdentifier(participantIdentifier);
 		participant.setData(data);
 	
-		Arm allocatedArm = trial.allocate(participant, database);
+		Arm allocatedArm = strategy.allocate(participant);
 
 		return allocatedArm.getName();
 	}
 
+	/**
+	 * Allocates every {"identifier": ..., "data": {...}} record in an NDJSON stream, in order, against a single
+	 * loaded trial. One {"identifier": ..., "allocation": ...} line is written per record. Work is committed
+	 * every chunkSize allocations, or once at the end of the stream if chunkSize is zero, and each chunk's
+	 * lines are only written once it has been committed, so no allocation that is rolled back is reported.
+	 */
+	public String addParticipants(String trialName, BufferedReader in, PrintStream out, int chunkSize) throws PersistenceException, InvalidTrialException, IOException {
+		long start = System.nanoTime();
+		Trial trial = database.getTrial(trialName);
+		if (trial == null) {
+			throw new PersistenceException("No such trial: "+ trialName);
+		}
+		Strategy strategy = trial.getAllocator(database);
+		AllocationMetrics.recordLoad(trial, System.nanoTime() - start);
+
+		Set<String> seen = new HashSet<String>();
+		int allocated = 0;
+		int failed = 0;
+		int inChunk = 0;
+		List<String> uncommitted = new ArrayList<String>();
+
+		database.beginBatch();
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.trim().length() == 0) {
+					continue;
+				}
+
+				JSONObject result = new JSONObject();
+				try {
+					JSONObject record = new JSONObject(line);
+					String identifier = record.getString("identifier");
+					result.put("identifier", identifier);
+
+					if (!seen.add(identifier) || database.participantExists(trial, identifier)) {
+						throw new AllocationException(identifier +" has already been allocated.");
+					}
+
+					Participant participant = new Participant();
+					participant.setIdentifier(identifier);
+					participant.setData(record.has("data") ? record.get("data").toString() : null);
+
+					result.put("allocation", strategy.allocate(participant).getName());
+					allocated++;
+					inChunk++;
+				}
+				catch (AllocationException e) {
+					result.put("status", COMMAND_FAILURE);
+					result.put("message", e.getClass().getSimpleName() +": " +e.getMessage());
+					failed++;
+				}
+				catch (JSONException e) {
+					result.put("status", COMMAND_FAILURE);
+					result.put("message", e.getClass().getSimpleName() +": " +e.getMessage());
+					failed++;
+				}
+				uncommitted.add(result.toString());
+
+				if (chunkSize > 0 && inChunk >= chunkSize) {
+					database.commitBatch();
+					printLines(out, uncommitted);
+					database.beginBatch();
+					inChunk = 0;
+				}
+			}
+			database.commitBatch();
+			printLines(out, uncommitted);
+		}
+		catch (PersistenceException e) {
+			database.rollbackBatch();
+			throw e;
+		}
+		catch (IOException e) {
+			database.rollbackBatch();
+			throw e;
+		}
+		catch (RuntimeException e) {
+			database.rollbackBatch();
+			throw e;
+		}
+
+		return allocated +" participants allocated in " +trialName +", " +failed +" rejected";
+	}
+
+	private static void printLines(PrintStream out, List<String> lines) {
+		for (String line : lines) {
+			out.println(line);
+		}
+		lines.clear();
+	}
+
+	/* envelope functions */
+
+	public String generateEnvelopes(String trialName, String outputPath, int perStratum, int threads) throws PersistenceException, InvalidTrialException, IOException {
+		Trial trial = database.getTrial(trialName);
+		if (trial == null) {
+			throw new PersistenceException("No such trial: "+ trialName);
+		}
+
+		long start = System.currentTimeMillis();
+		new EnvelopeGenerator(trial).generate(new File(outputPath), perStratum, threads, new Random().nextLong());
+		return "Generated " +perStratum +" envelopes for each of " +trial.getCompiled().getStrataCount() +" strata of " +trialName +" in " +(System.currentTimeMillis() - start) +"ms";
+	}
+
+	/**
+	 * Records the participants a site allocated from envelopes, adding them to the trial and counting them
+	 * with its strategy, as imported participants are. Participants already present are skipped, so a log
+	 * may be reconciled again as it grows. Nothing is recorded if any entry does not match the trial.
+	 *
+	 * A server allocating to the trial keeps its counters in memory and would write them back over the
+	 * reconciled ones, so envelopes should only be reconciled while the trial is not being allocated to.
+	 */
+	public String reconcileEnvelopes(String trialName, String logPath) throws PersistenceException, InvalidTrialException, AllocationException, IOException {
+		Trial trial = database.getTrial(trialName);
+		if (trial == null) {
+			throw new PersistenceException("No such trial: "+ trialName);
+		}
+		CompiledTrial compiled = trial.getCompiled();
+		Strategy strategy = trial.getAllocator(database);
+
+		List<Participant> envelopes = new ArrayList<Participant>();
+		for (JSONObject record : new EnvelopeLog(new File(logPath)).getRecords()) {
+			String identifier = record.getString("identifier");
+			Participant participant = new Participant();
+			participant.setIdentifier(identifier);
+			participant.setData(record.isNull("data") ? null : record.getString("data"));
+			participant.setTrial(trial);
+
+			int stratum = compiled.getStratumId(participant);
+			if (!compiled.getStrataName(stratum).equals(record.getString("stratum"))) {
+				throw new AllocationException(identifier +" was given an envelope from (" +record.getString("stratum") +") but belongs in (" +compiled.getStrataName(stratum) +").");
+			}
+			for (Arm a : compiled.getArms()) {
+				if (a.getName().equals(record.getString("arm"))) {
+					participant.setAllocatedArm(a);
+				}
+			}
+			if (participant.getAllocatedArm() == null) {
+				throw new AllocationException(identifier +" was given an envelope for unknown arm " +record.getString("arm") +".");
+			}
+			envelopes.add(participant);
+		}
+		int total = envelopes.size();
+
+		int reconciled;
+		database.beginImport(trial);
+		try {
+			reconciled = importChunk(trial, strategy, envelopes);
+
+			Map<String, Double> changed = new HashMap<String, Double>();
+			strategy.writeCounters(changed);
+			database.commitImport(trial, changed);
+		}
+		catch (PersistenceException e) {
+			database.rollbackImport();
+			throw e;
+		}
+		catch (AllocationException e) {
+			database.rollbackImport();
+			throw e;
+		}
+		catch (RuntimeException e) {
+			database.rollbackImport();
+			throw e;
+		}
+
+		return reconciled +" envelopes reconciled into " +trialName +", " +(total - reconciled) +" already present";
+	}
+
+	/* counter functions */
+
+	/**
+	 * Recounts the trial's allocation counters, and its minimisation marginals, from its participants and
+	 * returns every counter that differs as {"counter", "stored", "actual"}. The participants are counted by
+	 * the database grouped by levels and arm, so none is loaded. If rebuild is set the stored counters are
+	 * overwritten with the actual counts.
+	 *
+	 * Block state and random draws cannot be recovered from the participants and are left alone. A server
+	 * allocating to the trial keeps its counters in memory and would write them back over a rebuild, so
+	 * counters should only be rebuilt while the trial is not being allocated to.
+	 */
+	public JSONArray checkCounters(String trialName, boolean rebuild) throws PersistenceException, InvalidTrialException, AllocationException {
+		Trial trial = database.getTrial(trialName);
+		if (trial == null) {
+			throw new PersistenceException("No such trial: "+ trialName);
+		}
+		CompiledTrial compiled = trial.getCompiled();
+		Strategy strategy = trial.getAllocator(database);
+
+		CounterStore actual = CounterStore.emptyForTrial(compiled);
+		for (AllocationCount count : database.countAllocations(trial)) {
+			int[] levels;
+			if (count.getLevels() != null) {
+				levels = parseLevels(count.getLevels());
+			}
+			else {
+				Participant participant = new Participant();
+				participant.setData(count.getData());
+				levels = compiled.getLevels(participant);
+			}
+			strategy.addAllocations(actual, compiled.getStratumId(levels), levels, count.getArm(), (int) count.getCount());
+		}
+
+		CounterStore stored = CounterStore.forTrial(compiled);
+		Map<String, Double> differences = new TreeMap<String, Double>();
+		actual.findCountDifferences(stored, differences);
+
+		Map<String, Double> storedValues = new HashMap<String, Double>();
+		stored.findCountDifferences(actual, storedValues);
+		JSONArray drift = new JSONArray();
+		for (Map.Entry<String, Double> e : differences.entrySet()) {
+			JSONObject entry = new JSONObject();
+			entry.put("counter", e.getKey());
+			entry.put("stored", storedValues.get(e.getKey()));
+			entry.put("actual", e.getValue());
+			drift.put(entry);
+		}
+
+		if (rebuild && !differences.isEmpty()) {
+			database.writeCounters(trial, differences);
+			trial.getParameters().putAll(differences);
+		}
+		return drift;
+	}
+
+	private static int[] parseLevels(String levels) {
+		String[] parts = levels.length() == 0 ? new String[0] : levels.split(",");
+		int[] indices = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			indices[i] = Integer.parseInt(parts[i]);
+		}
+		return indices;
+	}
+
+	/* export functions */
+
+	/**
+	 * Writes every participant of the trial, with their stratum, arm and the given fields of their data, to
+	 * out as CSV or NDJSON (see ExportWriter), then closes it. Without fields the trial's variables are
+	 * written. The participants are read through a ParticipantCursor, so memory does not grow with the
+	 * trial. A participant whose stratum cannot be worked out is written with an empty one.
+	 */
+	public String exportTrial(String trialName, String format, Writer out, List<String> fields) throws PersistenceException, IOException {
+		Trial trial = database.getTrial(trialName);
+		if (trial == null) {
+			out.close();
+			throw new PersistenceException("No such trial: "+ trialName);
+		}
+		CompiledTrial compiled = trial.getCompiled();
+		if (fields == null) {
+			fields = new ArrayList<String>();
+			for (Variable v : compiled.getVariables()) {
+				fields.add(v.getName());
+			}
+		}
+
+		long start = System.currentTimeMillis();
+		// most participants share a few levels, so each is worked out once
+		Map<String, String> strataByLevels = new HashMap<String, String>();
+		ExportWriter writer;
+		try {
+			writer = ExportWriter.open(format, out, fields);
+		}
+		catch (IllegalArgumentException e) {
+			out.close();
+			throw e;
+		}
+		ParticipantCursor cursor = database.exportParticipants(trial);
+		try {
+			while (cursor.next()) {
+				String levels = cursor.getLevels();
+				String stratum = levels == null ? null : strataByLevels.get(levels);
+				if (stratum == null) {
+					stratum = getStrataName(compiled, levels, cursor.getData());
+					if (levels != null) {
+						strataByLevels.put(levels, stratum);
+					}
+				}
+
+				JSONObject data;
+				try {
+					data = cursor.getData() == null ? new JSONObject() : new JSONObject(cursor.getData());
+				}
+				catch (JSONException e) {
+					data = new JSONObject();
+				}
+				Arm arm = cursor.getArm();
+				writer.write(cursor.getIdentifier(), stratum, arm == null ? "" : arm.getName(), data);
+			}
+		}
+		finally {
+			cursor.close();
+			writer.close();
+		}
+
+		return writer.getWritten() +" participants exported from " +trialName +" in " +(System.currentTimeMillis() - start) +"ms";
+	}
+
+	private static String getStrataName(CompiledTrial compiled, String levels, String data) {
+		try {
+			if (levels != null) {
+				return compiled.getStrataName(compiled.getStratumId(parseLevels(levels)));
+			}
+			Participant participant = new Participant();
+			participant.setData(data);
+			return compiled.getStrataName(compiled.getStratumId(participant));
+		}
+		catch (AllocationException e) {
+			return "";
+		}
+		catch (RuntimeException e) {
+			return "";
+		}
+	}
+
 	/* participant functions */
-	public String spamParticipants(String trialName, int max) throws AllocationException, PersistenceException, InvalidTrialException, FileNotFoundException {
+	public String spamParticipants(String trialName, int max) throws AllocationException, PersistenceException, InvalidTrialException {
 		Trial trial = database.getTrial(trialName);
 		if (trial == null) {
 			throw new PersistenceException("No such trial: "+ trialName);
 		}
 
+		Random r = new Random();
 		for (int i = 0; i<max; i++) {
+			String data = "{'height': '" + (50+r.nextInt(100)) +"', 'weight': '"+(25+r.nextInt(100)) +"', 'isAlpaca': '"+ (r.nextInt(2) > 0 ? "yes" : "no") +"'}";
 			try {
-				System.out.println(addParticipant(trialName, ""+i, null));
+				System.out.println(addParticipantWithData(trialName, ""+i, data));
 			}
 			catch(AllocationException e) {
 				max++;
@@ -186,13 +696,120 @@ public class CommandLineAPI {
 		return "YEAH!!!";
 	}
 
+	/**
+	 * Imports participants already allocated elsewhere, with their arms, from a CSV or NDJSON file (see
+	 * ImportReader). The file is read once, chunkSize participants at a time, and the trial's counters are
+	 * rebuilt by its strategy as each participant is read, so memory does not grow with the file. Participants
+	 * the trial already has, or that appear earlier in the file, are skipped. Nothing is committed unless
+	 * every participant can be imported.
+	 */
+	public String importParticipants(String trialName, File path, int chunkSize) throws PersistenceException, InvalidTrialException, AllocationException, ParticipantLoadException, IOException {
+		Trial trial = database.getTrial(trialName);
+		if (trial == null) {
+			throw new PersistenceException("No such trial: "+ trialName);
+		}
+		Strategy strategy = trial.getAllocator(database);
+
+		Map<String, Arm> arms = new HashMap<String, Arm>();
+		for (Arm a : trial.getArms()) {
+			arms.put(a.getName(), a);
+		}
+
+		int imported = 0;
+		int skipped = 0;
+		List<Participant> chunk = new ArrayList<Participant>(chunkSize);
+
+		ImportReader in = ImportReader.open(path);
+		database.beginImport(trial);
+		try {
+			while (in.next()) {
+				Arm arm = arms.get(in.getArm());
+				if (arm == null) {
+					throw new ParticipantLoadException("Unknown arm " +in.getArm() +".", in.getLine());
+				}
+
+				Participant participant = new Participant();
+				participant.setIdentifier(in.getIdentifier());
+				participant.setData(in.getData());
+				participant.setTrial(trial);
+				participant.setAllocatedArm(arm);
+				try {
+					trial.getCompiled().getLevels(participant);
+				}
+				catch (AllocationException e) {
+					throw new ParticipantLoadException(e.getMessage(), in.getLine());
+				}
+				chunk.add(participant);
+
+				if (chunk.size() >= chunkSize) {
+					imported += importChunk(trial, strategy, chunk);
+				}
+			}
+			imported += importChunk(trial, strategy, chunk);
+			skipped = in.getRead() - imported;
+
+			Map<String, Double> changed = new HashMap<String, Double>();
+			strategy.writeCounters(changed);
+			database.commitImport(trial, changed);
+		}
+		catch (PersistenceException e) {
+			database.rollbackImport();
+			throw e;
+		}
+		catch (AllocationException e) {
+			database.rollbackImport();
+			throw e;
+		}
+		catch (ParticipantLoadException e) {
+			database.rollbackImport();
+			throw e;
+		}
+		catch (IOException e) {
+			database.rollbackImport();
+			throw e;
+		}
+		catch (RuntimeException e) {
+			database.rollbackImport();
+			throw e;
+		}
+		finally {
+			in.close();
+		}
+
+		return imported +" participants imported into " +trialName +", " +skipped +" already present";
+	}
+
+	/* Stores the chunk's new participants, counting each with the strategy, and empties the chunk. */
+	private int importChunk(Trial trial, Strategy strategy, List<Participant> chunk) throws PersistenceException, AllocationException {
+		List<String> identifiers = new ArrayList<String>(chunk.size());
+		for (Participant p : chunk) {
+			identifiers.add(p.getIdentifier());
+		}
+		Set<String> present = database.findParticipants(trial, identifiers);
+
+		List<Participant> fresh = new ArrayList<Participant>(chunk.size());
+		for (Participant p : chunk) {
+			// present also catches a repeat of an identifier earlier in the chunk
+			if (present.add(p.getIdentifier())) {
+				strategy.recordAllocation(p, p.getAllocatedArm());
+				fresh.add(p);
+			}
+		}
+		database.importParticipants(trial, fresh);
+		chunk.clear();
+		return fresh.size();
+	}
+
 	public String removeParticipant(String trialId, String participantId) {
 		logger.error("Removing a participant is currently unsupported.");
 		return "...";
 	}
 
-	public String getParticipantAllocation(String trialId, String participantId) {
+	public String getParticipantAllocation(String trialId, String participantId) throws PersistenceException {
 		Participant p = database.getParticipant(trialId, participantId);
+		if (p == null) {
+			throw new PersistenceException("No such participant: " +participantId);
+		}
 		return p.getAllocatedArm().getName();
 	}
 }
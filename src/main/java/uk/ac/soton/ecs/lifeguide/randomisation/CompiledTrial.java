@@ -0,0 +1,192 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import uk.ac.soton.ecs.lifeguide.randomisation.exception.*;
+
+import java.util.*;
+
+/**
+ * Immutable, pre-computed view of a loaded Trial used on the allocation path.
+ *
+ * A participant's data is decoded once into a compact array of levels, one per variable used for
+ * stratification or minimisation, holding the index of the stratum the response falls in.
+ *
+ * Each combination of stratification levels maps to a dense stratum id using a mixed radix, with the
+ * first stratification variable most significant. This matches the order of Trial.getAllStrata(),
+ * so stratum id i is named by getStrataName(i). Names are only built for display and persistence.
+ */
+public class CompiledTrial {
+
+	private final Trial trial;
+
+	private final Arm[] arms;
+	private final int[] armWeights;
+	private final int[] armLimits;
+	private final int totalWeight;
+
+	private final List<Variable> variables;
+	private final List<Variable> stratificationVariables;
+	private final List<Variable> minimisationVariables;
+	private final int[] stratificationSlots;
+	private final int[] minimisationSlots;
+	private final ParticipantDataReader reader;
+
+	private final int[] radices;
+	private final int[] multipliers;
+	private final int strataCount;
+	private final List<String> strataNames;
+
+	public CompiledTrial(Trial trial) {
+		this.trial = trial;
+
+		List<Arm> armList = trial.getArms();
+		arms = armList.toArray(new Arm[armList.size()]);
+		armWeights = new int[arms.length];
+		armLimits = new int[arms.length];
+		int weight = 0;
+		for (int i = 0; i < arms.length; i++) {
+			armWeights[i] = arms[i].getWeight();
+			armLimits[i] = arms[i].getMaxParticipants();
+			weight += armWeights[i];
+		}
+		totalWeight = weight;
+
+		stratificationVariables = Collections.unmodifiableList(trial.getVariablesByType("stratification"));
+		minimisationVariables = Collections.unmodifiableList(trial.getVariablesByType("minimisation"));
+
+		List<Variable> used = new ArrayList<Variable>();
+		for (Variable v : trial.getVariables()) {
+			if (stratificationVariables.contains(v) || minimisationVariables.contains(v)) {
+				used.add(v);
+			}
+		}
+		variables = Collections.unmodifiableList(used);
+		stratificationSlots = new int[stratificationVariables.size()];
+		for (int v = 0; v < stratificationSlots.length; v++) {
+			stratificationSlots[v] = variables.indexOf(stratificationVariables.get(v));
+		}
+		minimisationSlots = new int[minimisationVariables.size()];
+		for (int v = 0; v < minimisationSlots.length; v++) {
+			minimisationSlots[v] = variables.indexOf(minimisationVariables.get(v));
+		}
+
+		String[] names = new String[variables.size()];
+		for (int v = 0; v < names.length; v++) {
+			names[v] = variables.get(v).getName();
+		}
+		reader = new ParticipantDataReader(names);
+
+		radices = new int[stratificationVariables.size()];
+		multipliers = new int[radices.length];
+		int count = 1;
+		for (int v = radices.length - 1; v >= 0; v--) {
+			radices[v] = stratificationVariables.get(v).getStrata().size();
+			multipliers[v] = count;
+			count *= radices[v];
+		}
+		strataCount = count;
+
+		List<String> strata = new ArrayList<String>(strataCount);
+		for (int id = 0; id < strataCount; id++) {
+			strata.add(buildStrataName(id));
+		}
+		strataNames = Collections.unmodifiableList(strata);
+	}
+
+	/* participant levels */
+
+	/* Decodes the participant's data on first use; the levels are then kept on the participant. */
+	public int[] getLevels(Participant participant) throws AllocationException {
+		int[] levels = participant.getLevels();
+		if (levels == null) {
+			try {
+				levels = decode(participant.getData());
+			}
+			catch (InvalidUserDataException e) {
+				throw new AllocationException("Cannot stratify participant " +participant.getIdentifier() +": " +e.getMessage(), e);
+			}
+			participant.setLevels(levels);
+		}
+		return levels;
+	}
+
+	public int[] decode(String data) throws InvalidUserDataException {
+		String[] values = reader.read(data);
+		int[] levels = new int[values.length];
+		for (int v = 0; v < levels.length; v++) {
+			Variable variable = variables.get(v);
+			if (values[v] == null) {
+				throw new InvalidUserDataException("No response given for " +variable.getName() +".", variable.getName());
+			}
+			levels[v] = variable.getStratumIndex(values[v]);
+		}
+		return levels;
+	}
+
+	public int getMinimisationLevel(int[] levels, int variable) {
+		return levels[minimisationSlots[variable]];
+	}
+
+	/* stratum ids */
+
+	public int getStratumId(Participant participant) throws AllocationException {
+		return getStratumId(getLevels(participant));
+	}
+
+	public int getStratumId(int[] levels) {
+		int id = 0;
+		for (int v = 0; v < radices.length; v++) {
+			id += levels[stratificationSlots[v]] * multipliers[v];
+		}
+		return id;
+	}
+
+	public int getLevel(int stratumId, int variable) {
+		return (stratumId / multipliers[variable]) % radices[variable];
+	}
+
+	public String getStrataName(int stratumId) {
+		return strataNames.get(stratumId);
+	}
+
+	private String buildStrataName(int stratumId) {
+		String result = "";
+		for (int v = 0; v < radices.length; v++) {
+			Variable variable = stratificationVariables.get(v);
+			if (v > 0) {
+				result += ", ";
+			}
+			result += variable.getName() +" " +variable.getStrata().get(getLevel(stratumId, v)).getName();
+		}
+		return result;
+	}
+
+	/* getters */
+
+	public Trial getTrial() { return trial; }
+
+	public Arm[] getArms() { return arms.clone(); }
+	public Arm getArm(int index) { return arms[index]; }
+	public int getArmCount() { return arms.length; }
+	public int getArmWeight(int index) { return armWeights[index]; }
+	public int getArmLimit(int index) { return armLimits[index]; }
+	public int getTotalWeight() { return totalWeight; }
+
+	public List<Variable> getVariables() { return variables; }
+	public List<Variable> getStratificationVariables() { return stratificationVariables; }
+	public List<Variable> getMinimisationVariables() { return minimisationVariables; }
+
+	public int getStrataCount() { return strataCount; }
+	public List<String> getStrataNames() { return strataNames; }
+
+	/* Approximate heap used by the trial and this view of it, in bytes. Dominated by the strata names. */
+	public long estimateSize() {
+		long size = 2048 + 256L * (arms.length + variables.size());
+		for (Variable v : variables) {
+			size += 128L * v.getStrata().size();
+		}
+		for (String name : strataNames) {
+			size += 48 + 2L * name.length();
+		}
+		return size;
+	}
+}
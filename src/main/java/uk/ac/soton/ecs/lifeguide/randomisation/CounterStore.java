@@ -0,0 +1,286 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import java.util.*;
+
+/**
+ * The allocation state of a trial, held in flat primitive arrays rather than as named entries in
+ * Trial.parameters. Counters are addressed by stratum index, minimisation variable, level and arm.
+ *
+ * The store is loaded from, and written back to, the same parameter names the strategies have
+ * always used, e.g. "(practice practice1) control allocations" or
+ * "(practice practice1) bp < 50.0 | control count". Only counters changed since the last write
+ * are written back.
+ *
+ * Every counter belongs to exactly one stratum, and changes are tracked per stratum, so callers holding
+ * a lock for a stratum may read, update and write back its counters while other strata are in use.
+ */
+public class CounterStore {
+
+	private final int strataCount;
+	private final int armCount;
+	private final int levelCount;
+	private final int[] levelOffsets;
+
+	private final int[] allocations;
+	private final int[] marginals;
+	private final int[] blockSizes;
+	private final long[] blockSeeds;
+	private final int[] blockCounters;
+	private final long[] randomDraws;
+
+	// naming information, only used when reading and writing parameters
+	private final List<String> strataNames;
+	private final List<String> armNames;
+	private final List<String> variableNames;
+	private final List<List<String>> levelNames;
+
+	// counters of a stratum are numbered allocations, then marginals, then block size, seed and counter,
+	// then the number of random numbers drawn
+	private final int marginalBase;
+	private final int blockBase;
+	private final int cellsPerStratum;
+	private final BitSet[] dirty;
+
+	public CounterStore(List<String> strataNames, List<String> armNames, List<String> variableNames, List<List<String>> levelNames) {
+		this.strataNames = strataNames;
+		this.armNames = armNames;
+		this.variableNames = variableNames;
+		this.levelNames = levelNames;
+
+		strataCount = strataNames.size();
+		armCount = armNames.size();
+
+		levelOffsets = new int[variableNames.size()];
+		int levels = 0;
+		for (int v = 0; v < levelOffsets.length; v++) {
+			levelOffsets[v] = levels;
+			levels += levelNames.get(v).size();
+		}
+		levelCount = levels;
+
+		allocations = new int[strataCount * armCount];
+		marginals = new int[strataCount * levelCount * armCount];
+		blockSizes = new int[strataCount];
+		blockSeeds = new long[strataCount];
+		blockCounters = new int[strataCount];
+		randomDraws = new long[strataCount];
+
+		marginalBase = armCount;
+		blockBase = marginalBase + levelCount * armCount;
+		cellsPerStratum = blockBase + 4;
+
+		dirty = new BitSet[strataCount];
+		for (int i = 0; i < strataCount; i++) {
+			dirty[i] = new BitSet(cellsPerStratum);
+		}
+	}
+
+	public static CounterStore forTrial(CompiledTrial compiled) {
+		CounterStore store = emptyForTrial(compiled);
+		store.readFrom(compiled.getTrial().getParameters());
+		return store;
+	}
+
+	/* A store for the trial with every counter zero, whatever its parameters hold. */
+	public static CounterStore emptyForTrial(CompiledTrial compiled) {
+		List<String> armNames = new ArrayList<String>();
+		for (Arm a : compiled.getArms()) {
+			armNames.add(a.getName());
+		}
+
+		List<String> variableNames = new ArrayList<String>();
+		List<List<String>> levelNames = new ArrayList<List<String>>();
+		for (Variable v : compiled.getMinimisationVariables()) {
+			variableNames.add(v.getName());
+			levelNames.add(v.getAllStratumNames());
+		}
+
+		return new CounterStore(compiled.getStrataNames(), armNames, variableNames, levelNames);
+	}
+
+	/* allocations per stratum and arm */
+
+	public int getAllocations(int stratum, int arm) {
+		return allocations[stratum * armCount + arm];
+	}
+
+	public void incrementAllocations(int stratum, int arm) {
+		addAllocations(stratum, arm, 1);
+	}
+
+	public void addAllocations(int stratum, int arm, int count) {
+		allocations[stratum * armCount + arm] += count;
+		dirty[stratum].set(arm);
+	}
+
+	/* minimisation marginals per stratum, variable, level and arm */
+
+	public int getMarginal(int stratum, int variable, int level, int arm) {
+		return marginals[marginalIndex(stratum, variable, level, arm)];
+	}
+
+	public void incrementMarginal(int stratum, int variable, int level, int arm) {
+		addMarginal(stratum, variable, level, arm, 1);
+	}
+
+	public void addMarginal(int stratum, int variable, int level, int arm, int count) {
+		marginals[marginalIndex(stratum, variable, level, arm)] += count;
+		dirty[stratum].set(marginalBase + (levelOffsets[variable] + level) * armCount + arm);
+	}
+
+	private int marginalIndex(int stratum, int variable, int level, int arm) {
+		return ((stratum * levelCount) + levelOffsets[variable] + level) * armCount + arm;
+	}
+
+	/* block state per stratum */
+
+	public int getBlockSize(int stratum) { return blockSizes[stratum]; }
+	public long getBlockSeed(int stratum) { return blockSeeds[stratum]; }
+	public int getBlockCounter(int stratum) { return blockCounters[stratum]; }
+
+	public void setBlock(int stratum, int size, long seed) {
+		blockSizes[stratum] = size;
+		blockSeeds[stratum] = seed;
+		dirty[stratum].set(blockBase);
+		dirty[stratum].set(blockBase + 1);
+	}
+
+	public void setBlockCounter(int stratum, int counter) {
+		blockCounters[stratum] = counter;
+		dirty[stratum].set(blockBase + 2);
+	}
+
+	/* the position of each stratum's random stream */
+
+	public long getRandomDraws(int stratum) { return randomDraws[stratum]; }
+
+	public void setRandomDraws(int stratum, long draws) {
+		randomDraws[stratum] = draws;
+		dirty[stratum].set(blockBase + 3);
+	}
+
+	/* dimensions */
+
+	public int getStrataCount() { return strataCount; }
+	public int getArmCount() { return armCount; }
+
+	/* Approximate heap used by the counters, in bytes; the names are shared with the CompiledTrial. */
+	public long estimateSize() {
+		long size = 4L * (allocations.length + marginals.length + blockSizes.length + blockCounters.length);
+		size += 8L * (blockSeeds.length + randomDraws.length);
+		size += (long) strataCount * (cellsPerStratum / 8 + 48);
+		return size;
+	}
+
+	/* serialisation to trial parameters */
+
+	public void readFrom(Map<String, Double> parameters) {
+		for (int stratum = 0; stratum < strataCount; stratum++) {
+			for (int cell = 0; cell < cellsPerStratum; cell++) {
+				Double value = parameters.get(nameOf(stratum, cell));
+				if (value != null) {
+					setCell(stratum, cell, value);
+				}
+			}
+			dirty[stratum].clear();
+		}
+	}
+
+	/**
+	 * Puts the name and value of every count, allocations and minimisation marginals, in which this store
+	 * differs from other into differences. Block state and stream positions are not compared.
+	 */
+	public void findCountDifferences(CounterStore other, Map<String, Double> differences) {
+		for (int stratum = 0; stratum < strataCount; stratum++) {
+			for (int cell = 0; cell < blockBase; cell++) {
+				Double value = getCell(stratum, cell);
+				if (!value.equals(other.getCell(stratum, cell))) {
+					differences.put(nameOf(stratum, cell), value);
+				}
+			}
+		}
+	}
+
+	/* Writes the counters changed since the last write into parameters. */
+	public void writeTo(Map<String, Double> parameters) {
+		for (int stratum = 0; stratum < strataCount; stratum++) {
+			writeTo(stratum, parameters);
+		}
+	}
+
+	/* Writes the counters of one stratum changed since the last write into parameters. */
+	public void writeTo(int stratum, Map<String, Double> parameters) {
+		BitSet changed = dirty[stratum];
+		for (int cell = changed.nextSetBit(0); cell >= 0; cell = changed.nextSetBit(cell + 1)) {
+			parameters.put(nameOf(stratum, cell), getCell(stratum, cell));
+		}
+		changed.clear();
+	}
+
+	private String nameOf(int stratum, int cell) {
+		String strataName = strataNames.get(stratum);
+		if (cell < marginalBase) {
+			return name(strataName, armNames.get(cell), "allocations");
+		}
+		else if (cell < blockBase) {
+			int i = cell - marginalBase;
+			int arm = i % armCount;
+			int level = i / armCount;
+
+			int variable = levelOffsets.length - 1;
+			while (levelOffsets[variable] > level) {
+				variable--;
+			}
+			String levelName = levelNames.get(variable).get(level - levelOffsets[variable]);
+			return name(strataName, variableNames.get(variable) +" " +levelName +" |", armNames.get(arm) +" count");
+		}
+		else {
+			String[] fields = {"size", "seed", "counter", "random draws"};
+			return name(strataName, "", fields[cell - blockBase]);
+		}
+	}
+
+	private Double getCell(int stratum, int cell) {
+		if (cell < marginalBase) {
+			return Double.valueOf(allocations[stratum * armCount + cell]);
+		}
+		else if (cell < blockBase) {
+			return Double.valueOf(marginals[stratum * levelCount * armCount + cell - marginalBase]);
+		}
+		switch (cell - blockBase) {
+			case 0: return Double.valueOf(blockSizes[stratum]);
+			// seeds have always been stored as the double whose bits form the seed
+			case 1: return Double.longBitsToDouble(blockSeeds[stratum]);
+			case 2: return Double.valueOf(blockCounters[stratum]);
+			default: return Double.valueOf(randomDraws[stratum]);
+		}
+	}
+
+	private void setCell(int stratum, int cell, double value) {
+		if (cell < marginalBase) {
+			allocations[stratum * armCount + cell] = (int) Math.round(value);
+		}
+		else if (cell < blockBase) {
+			marginals[stratum * levelCount * armCount + cell - marginalBase] = (int) Math.round(value);
+		}
+		else {
+			switch (cell - blockBase) {
+				case 0: blockSizes[stratum] = (int) Math.round(value); break;
+				case 1: blockSeeds[stratum] = Double.doubleToLongBits(value); break;
+				case 2: blockCounters[stratum] = (int) Math.round(value); break;
+				default: randomDraws[stratum] = Math.round(value); break;
+			}
+		}
+	}
+
+	private static String name(String strataName, String subName, String statisticName) {
+		String result = "";
+		if (!strataName.equals("")) {
+			result += "("+strataName+") ";
+		}
+		if (!subName.equals("")) {
+			result += subName +" ";
+		}
+		return result+statisticName;
+	}
+}
@@ -2,108 +2,85 @@ package uk.ac.soton.ecs.lifeguide.randomisation;
 
 import uk.ac.soton.ecs.lifeguide.randomisation.exception.*;
 
-import java.io.*;
-import java.sql.*;
 import java.util.*;
 
-import org.json.*;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import org.hibernate.*;
-import org.hibernate.cfg.AnnotationConfiguration;
-import org.hibernate.cfg.Configuration;
-
-public class DataManager {
-
-	private static SessionFactory factory;
-	private Session session;
-
-	public DataManager() throws PersistenceException {
-	
-		try {
-
-			factory = new AnnotationConfiguration().
-				configure().
-				addPackage("uk.ac.soton.ecs.lifeguide.randomisation").
-				addAnnotatedClass(Trial.class).
-				addAnnotatedClass(Participant.class).
-				addAnnotatedClass(Arm.class).
-				addAnnotatedClass(Variable.class).
-				addAnnotatedClass(Stratum.class).
-				addAnnotatedClass(RangeStratum.class).
-				buildSessionFactory();
-		}
-		catch (Exception e) { 
-			throw new PersistenceException("Failed to create sessionFactory object.", e); 
-		}
-	}
-
-	public void connect() {
-		session = factory.openSession();
-	}
-
-	public void disconnect() {
-		session.close();
-	}
-
-	public Trial getTrial(String name) {
-		Query q = session.createQuery("from Trial where name = :name");
-		q.setParameter("name", name);
-		List<Trial> result = q.list();
-		if (result.size() > 0) {
-			return result.get(0);
-		}
-		else {
-			return null;
-		}
-	}
-
-	public void registerTrial(Trial trial) throws PersistenceException, InvalidTrialException {
-
-		Transaction tx = null;
-		Integer generatedId = null;
-		try {
-			tx = session.beginTransaction();
-			generatedId = (Integer) session.save(trial);
-			tx.commit();
-		}
-		catch (HibernateException e) {
-			session.close();
-			session = DataManager.factory.openSession();
-			throw new PersistenceException("Could not register trial", e);
-		}
-	}
-
-	public Participant getParticipant(String trialName, String identifier) {
-		Query q = session.createQuery("from Participant where identifier= :identifier and trial.name = :trialName");
-		q.setParameter("identifier", identifier);
-		q.setParameter("trialName", trialName);
-		List<Participant> result = q.list();
-		if (result.size() > 0) {
-			return result.get(0);
-		}
-		else {
-			return null;
-		}
-	}
-
-	public boolean update(Trial trial, Participant participant, Arm arm) throws PersistenceException {
-		participant.setAllocatedArm(arm);
-		trial.addParticipant(participant);
-
-		Transaction tx = null;
-		Integer generatedId = null;
-		try {
-			tx = session.beginTransaction();
-			generatedId = (Integer) session.save(trial);
-			tx.commit();
-		}
-		catch (HibernateException e) {
-			session.close();
-			session = DataManager.factory.openSession();
-			throw new PersistenceException("Could not allocate", e);
-		}
-		return true;
-	}
+/**
+ * Persistence for trials and participants. An instance is a single connection to a store: connect() it
+ * before use and disconnect() it afterwards. Implementations synchronise their methods so an instance may be
+ * shared between threads.
+ *
+ * Use DataManagerFactory.create() to get the configured implementation.
+ */
+public interface DataManager {
+
+	public void connect() throws PersistenceException;
+
+	public void disconnect();
+
+	/* trials */
+
+	/**
+	 * Returns the named trial, or null, with everything the allocation path uses already loaded. The trial
+	 * is not tied to the store: allocations are recorded only through update().
+	 */
+	public Trial getTrial(String name) throws PersistenceException;
+
+	public void registerTrial(Trial trial) throws PersistenceException, InvalidTrialException;
+
+	/* participants */
+
+	public Participant getParticipant(String trialName, String identifier) throws PersistenceException;
+
+	public boolean participantExists(Trial trial, String identifier) throws PersistenceException;
+
+	/* Returns those of the identifiers the trial already has, including any imported but not yet committed. */
+	public Set<String> findParticipants(Trial trial, Collection<String> identifiers) throws PersistenceException;
+
+	public long countParticipants(Trial trial) throws PersistenceException;
+
+	/* Returns up to max participants, with their allocated arms, in the order they were added, starting at first. */
+	public List<Participant> listParticipants(Trial trial, int first, int max) throws PersistenceException;
+
+	/**
+	 * Counts the trial's participants by levels and allocated arm in the store itself, without loading any
+	 * of them, for checking the trial's counters.
+	 */
+	public List<AllocationCount> countAllocations(Trial trial) throws PersistenceException;
+
+	/* Opens a cursor over every participant of the trial, which the caller must close. */
+	public ParticipantCursor exportParticipants(Trial trial) throws PersistenceException;
+
+	/* Overwrites the named counters of the trial in one transaction. */
+	public void writeCounters(Trial trial, Map<String, Double> counters) throws PersistenceException;
+
+	/* allocations */
+
+	/**
+	 * Records an allocation: the participant, allocated to arm, and the counters it changed, which map
+	 * parameter names to their new values.
+	 */
+	public boolean update(Trial trial, Participant participant, Arm arm, Map<String, Double> counters) throws PersistenceException;
+
+	/* Batches: update() only queues work until commitBatch() is called, and rollbackBatch() discards it. */
+
+	public void beginBatch() throws PersistenceException;
+
+	public void commitBatch() throws PersistenceException;
+
+	public void rollbackBatch();
+
+	/**
+	 * Imports: participants whose arms were decided elsewhere, such as by a system the trial is migrated from.
+	 * importParticipants() writes each chunk in bulk without keeping it in memory, and nothing is visible to
+	 * other connections until commitImport() writes the trial's rebuilt counters with them.
+	 */
+
+	public void beginImport(Trial trial) throws PersistenceException;
+
+	/* Stores participants that already have their allocated arm and levels set. */
+	public void importParticipants(Trial trial, List<Participant> participants) throws PersistenceException;
+
+	public void commitImport(Trial trial, Map<String, Double> counters) throws PersistenceException;
+
+	public void rollbackImport();
 }
@@ -0,0 +1,23 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import uk.ac.soton.ecs.lifeguide.randomisation.exception.*;
+
+import java.io.File;
+
+/**
+ * Chooses the persistence backend. By default trials are kept in the database configured in
+ * hibernate.cfg.xml; setting the randomisation.store system property to a file path uses an embedded
+ * FileDataManager on that file instead.
+ */
+public class DataManagerFactory {
+
+	public static final String STORE_PROPERTY = "randomisation.store";
+
+	public static DataManager create() throws PersistenceException {
+		String store = System.getProperty(STORE_PROPERTY);
+		if (store != null && store.length() > 0) {
+			return new FileDataManager(new File(store));
+		}
+		return new HibernateDataManager();
+	}
+}
@@ -0,0 +1,152 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import uk.ac.soton.ecs.lifeguide.randomisation.exception.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A file of pre-generated "sealed envelope" allocations for sites that cannot reach the allocation server.
+ * It holds the trial's definition, so a site can work out each participant's stratum on its own, and one
+ * sequence of arms per stratum, opened strictly in order.
+ *
+ * Layout, written with DataOutput:
+ *   int magic, int version, UTF trial name, int length + UTF-8 bytes of the trial definition,
+ *   long seed, int arm count, UTF arm names, int strata count, UTF strata names,
+ *   per stratum: long offset into the envelopes, int envelope count,
+ *   then the envelopes: one byte per envelope holding the arm order.
+ *
+ * Reading an envelope is a single seek, whatever the size of the file.
+ */
+public class EnvelopeFile {
+
+	public static final int MAGIC = 0x52454E56;
+	public static final int VERSION = 1;
+
+	/* Envelopes store arm orders in one byte. */
+	public static final int MAX_ARMS = 256;
+
+	private final RandomAccessFile file;
+	private final String trialName;
+	private final String definition;
+	private final long seed;
+	private final String[] armNames;
+	private final String[] strataNames;
+	private final long[] offsets;
+	private final int[] counts;
+	private final long dataStart;
+
+	private Trial trial;
+
+	public EnvelopeFile(File path) throws IOException {
+		file = new RandomAccessFile(path, "r");
+		try {
+			if (file.readInt() != MAGIC || file.readInt() != VERSION) {
+				throw new IOException(path +" is not an envelope file.");
+			}
+			trialName = file.readUTF();
+			byte[] bytes = new byte[file.readInt()];
+			file.readFully(bytes);
+			definition = new String(bytes, "UTF-8");
+			seed = file.readLong();
+
+			armNames = new String[file.readInt()];
+			for (int a = 0; a < armNames.length; a++) {
+				armNames[a] = file.readUTF();
+			}
+			strataNames = new String[file.readInt()];
+			for (int s = 0; s < strataNames.length; s++) {
+				strataNames[s] = file.readUTF();
+			}
+			offsets = new long[strataNames.length];
+			counts = new int[strataNames.length];
+			for (int s = 0; s < strataNames.length; s++) {
+				offsets[s] = file.readLong();
+				counts[s] = file.readInt();
+			}
+			dataStart = file.getFilePointer();
+		}
+		catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes an envelope file. envelopes holds, for each stratum, the chunks of arm orders that make up its
+	 * sequence, in order.
+	 */
+	public static void write(File path, Trial trial, long seed, List<List<byte[]>> envelopes) throws IOException {
+		CompiledTrial compiled = trial.getCompiled();
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(trial.getName());
+			// sites only stratify, so the trial's parameters and counters are left out
+			byte[] bytes = TrialLoader.toJSON(trial, Collections.<String, Double>emptyMap()).toString().getBytes("UTF-8");
+			out.writeInt(bytes.length);
+			out.write(bytes);
+			out.writeLong(seed);
+
+			out.writeInt(compiled.getArmCount());
+			for (Arm arm : compiled.getArms()) {
+				out.writeUTF(arm.getName());
+			}
+			out.writeInt(compiled.getStrataCount());
+			for (String name : compiled.getStrataNames()) {
+				out.writeUTF(name);
+			}
+
+			long offset = 0;
+			for (List<byte[]> chunks : envelopes) {
+				int count = 0;
+				for (byte[] chunk : chunks) {
+					count += chunk.length;
+				}
+				out.writeLong(offset);
+				out.writeInt(count);
+				offset += count;
+			}
+
+			for (List<byte[]> chunks : envelopes) {
+				for (byte[] chunk : chunks) {
+					out.write(chunk);
+				}
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/* The trial the envelopes were generated for, as it was defined then. */
+	public synchronized Trial getTrial() throws InvalidTrialException {
+		if (trial == null) {
+			trial = TrialLoader.parseTrial(definition);
+			trial.setName(trialName);
+		}
+		return trial;
+	}
+
+	/* The arm order in the index-th envelope of a stratum. */
+	public synchronized int getArm(int stratum, int index) throws IOException {
+		if (index < 0 || index >= counts[stratum]) {
+			throw new IndexOutOfBoundsException("Stratum " +stratum +" has " +counts[stratum] +" envelopes, not " +(index + 1));
+		}
+		file.seek(dataStart + offsets[stratum] + index);
+		return file.readUnsignedByte();
+	}
+
+	public void close() throws IOException {
+		file.close();
+	}
+
+	public String getTrialName() { return trialName; }
+	public long getSeed() { return seed; }
+	public String getArmName(int arm) { return armNames[arm]; }
+	public int getStrataCount() { return strataNames.length; }
+	public String getStrataName(int stratum) { return strataNames[stratum]; }
+	public int getCount(int stratum) { return counts[stratum]; }
+}
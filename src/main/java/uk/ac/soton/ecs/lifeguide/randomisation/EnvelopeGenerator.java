@@ -0,0 +1,149 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import uk.ac.soton.ecs.lifeguide.randomisation.exception.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Generates an EnvelopeFile for a trial using SimpleRandomisation or BlockedRandomisation. Minimisation
+ * depends on the participants already allocated, so it cannot be generated ahead of time.
+ *
+ * Each stratum's sequence is cut into chunks of about CHUNK_SIZE envelopes, generated in parallel, each
+ * from its own RandomStream split from the file's seed by stratum and chunk, so a file can be regenerated
+ * exactly. Blocked chunks hold whole blocks, of sizes drawn as BlockedRandomisation draws them, and only the
+ * last chunk of a stratum is cut short; a stratum may therefore hold slightly more envelopes than asked for.
+ *
+ * Envelopes are drawn independently of the trial's own allocation state, and arm limits are not applied:
+ * a site cannot know how many participants other sites have allocated.
+ */
+public class EnvelopeGenerator {
+
+	public static final int CHUNK_SIZE = 1 << 16;
+
+	private final Trial trial;
+	private final boolean blocked;
+	private final int[] unitArms;
+	private final int minBlockUnits;
+	private final int maxBlockUnits;
+
+	public EnvelopeGenerator(Trial trial) throws InvalidTrialException {
+		this.trial = trial;
+		CompiledTrial compiled = trial.getCompiled();
+
+		if ("BlockedRandomisation".equals(trial.getStrategy())) {
+			blocked = true;
+		}
+		else if ("SimpleRandomisation".equals(trial.getStrategy())) {
+			blocked = false;
+		}
+		else {
+			throw new InvalidTrialException("Envelopes can only be generated for SimpleRandomisation or BlockedRandomisation, not " +trial.getStrategy() +".");
+		}
+		if (compiled.getArmCount() > EnvelopeFile.MAX_ARMS) {
+			throw new InvalidTrialException("Envelopes can hold at most " +EnvelopeFile.MAX_ARMS +" arms.");
+		}
+		StrategyRegistry.validate(trial);
+
+		unitArms = new int[compiled.getTotalWeight()];
+		int unit = 0;
+		for (int a = 0; a < compiled.getArmCount(); a++) {
+			for (int i = 0; i < compiled.getArmWeight(a); i++) {
+				unitArms[unit++] = a;
+			}
+		}
+
+		if (blocked) {
+			int blockSize = (int) Math.round(trial.getParameters().get("blocksize")) / unitArms.length;
+			int delta = (int) Math.round(trial.getParameters().get("delta")) / unitArms.length;
+			minBlockUnits = blockSize - delta;
+			maxBlockUnits = blockSize + delta;
+		}
+		else {
+			minBlockUnits = 0;
+			maxBlockUnits = 0;
+		}
+	}
+
+	/* Writes at least perStratum envelopes for every stratum of the trial to path, using up to threads threads. */
+	public void generate(File path, final int perStratum, int threads, long seed) throws IOException {
+		int strataCount = trial.getCompiled().getStrataCount();
+		int chunksPerStratum = (perStratum + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		RandomStream root = new SplitMixStream(seed);
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<List<Future<byte[]>>> futures = new ArrayList<List<Future<byte[]>>>(strataCount);
+			for (int s = 0; s < strataCount; s++) {
+				List<Future<byte[]>> chunks = new ArrayList<Future<byte[]>>(chunksPerStratum);
+				RandomStream stratumStream = root.split(s);
+				for (int c = 0; c < chunksPerStratum; c++) {
+					final RandomStream random = stratumStream.split(c);
+					final int target = Math.min(CHUNK_SIZE, perStratum - c * CHUNK_SIZE);
+					final boolean last = c == chunksPerStratum - 1;
+					chunks.add(executor.submit(new Callable<byte[]>() {
+						public byte[] call() {
+							return generateChunk(random, target, last);
+						}
+					}));
+				}
+				futures.add(chunks);
+			}
+
+			List<List<byte[]>> envelopes = new ArrayList<List<byte[]>>(strataCount);
+			for (List<Future<byte[]>> chunks : futures) {
+				List<byte[]> results = new ArrayList<byte[]>(chunks.size());
+				for (Future<byte[]> f : chunks) {
+					results.add(f.get());
+				}
+				envelopes.add(results);
+			}
+
+			EnvelopeFile.write(path, trial, seed, envelopes);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while generating envelopes", e);
+		}
+		catch (ExecutionException e) {
+			throw new IOException("Could not generate envelopes", e.getCause());
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private byte[] generateChunk(RandomStream random, int target, boolean last) {
+		if (!blocked) {
+			byte[] chunk = new byte[target];
+			for (int i = 0; i < target; i++) {
+				chunk[i] = (byte) unitArms[random.nextInt(unitArms.length)];
+			}
+			return chunk;
+		}
+
+		byte[] chunk = new byte[target + maxBlockUnits * unitArms.length];
+		int count = 0;
+		while (count < target) {
+			int copies = minBlockUnits + random.nextInt(maxBlockUnits - minBlockUnits + 1);
+			int size = copies * unitArms.length;
+
+			// lay the block out arm by arm, then shuffle it in place
+			int i = count;
+			for (int unit = 0; unit < unitArms.length; unit++) {
+				for (int c = 0; c < copies; c++) {
+					chunk[i++] = (byte) unitArms[unit];
+				}
+			}
+			for (int j = size - 1; j > 0; j--) {
+				int k = random.nextInt(j + 1);
+				byte t = chunk[count + j];
+				chunk[count + j] = chunk[count + k];
+				chunk[count + k] = t;
+			}
+			count += size;
+		}
+		return Arrays.copyOf(chunk, last ? target : count);
+	}
+}
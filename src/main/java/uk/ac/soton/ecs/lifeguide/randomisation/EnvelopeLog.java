@@ -0,0 +1,128 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import uk.ac.soton.ecs.lifeguide.randomisation.exception.*;
+
+import java.io.*;
+import java.util.*;
+import org.json.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A site's record of the envelopes it has opened, one JSON object per line:
+ *
+ *   {"identifier": id, "data": ..., "stratum": name, "envelope": n, "arm": arm}
+ *
+ * The log is what the site sends back to be reconciled into the trial, and it is also how the site knows
+ * which envelope of each stratum to open next. Each line is forced to disk before the allocation is given.
+ * A torn line at the end of the log, left by a crash part way through a write, is discarded.
+ */
+public class EnvelopeLog {
+
+	private static final Logger logger = LoggerFactory.getLogger(EnvelopeLog.class);
+
+	private final File path;
+	private final List<JSONObject> records = new ArrayList<JSONObject>();
+	private final Map<String, JSONObject> byIdentifier = new HashMap<String, JSONObject>();
+	private final Map<String, Integer> opened = new HashMap<String, Integer>();
+
+	public EnvelopeLog(File path) throws IOException {
+		this.path = path;
+		if (!path.exists()) {
+			return;
+		}
+
+		long valid = 0;
+		InputStream in = new BufferedInputStream(new FileInputStream(path));
+		try {
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			int b;
+			while ((b = in.read()) != -1) {
+				if (b != '\n') {
+					line.write(b);
+					continue;
+				}
+				// the newline is written last, so only an unterminated line can be torn
+				String text = line.toString("UTF-8");
+				if (text.trim().length() > 0) {
+					add(new JSONObject(text));
+				}
+				valid += line.size() + 1;
+				line.reset();
+			}
+		}
+		finally {
+			in.close();
+		}
+
+		if (path.length() > valid) {
+			logger.warn("Discarding unreadable line at the end of " +path);
+			RandomAccessFile file = new RandomAccessFile(path, "rw");
+			try {
+				file.setLength(valid);
+				file.getFD().sync();
+			}
+			finally {
+				file.close();
+			}
+		}
+	}
+
+	/**
+	 * Opens the next envelope of the participant's stratum and records it, returning the arm. The stratum is
+	 * worked out from the trial held in the envelope file.
+	 */
+	public synchronized String open(EnvelopeFile envelopes, String identifier, String data) throws AllocationException, InvalidTrialException, IOException {
+		if (byIdentifier.containsKey(identifier)) {
+			throw new AllocationException(identifier +" has already been allocated.");
+		}
+
+		Participant participant = new Participant();
+		participant.setIdentifier(identifier);
+		participant.setData(data);
+		int stratum = envelopes.getTrial().getCompiled().getStratumId(participant);
+		String strataName = envelopes.getStrataName(stratum);
+
+		int envelope = getOpened(strataName);
+		if (envelope >= envelopes.getCount(stratum)) {
+			throw new AllocationException("No envelopes left for stratum (" +strataName +").");
+		}
+		String arm = envelopes.getArmName(envelopes.getArm(stratum, envelope));
+
+		JSONObject record = new JSONObject();
+		record.put("identifier", identifier);
+		record.put("data", data == null ? JSONObject.NULL : data);
+		record.put("stratum", strataName);
+		record.put("envelope", envelope);
+		record.put("arm", arm);
+
+		FileOutputStream out = new FileOutputStream(path, true);
+		try {
+			out.write((record.toString() +"\n").getBytes("UTF-8"));
+			out.getFD().sync();
+		}
+		finally {
+			out.close();
+		}
+		add(record);
+		return arm;
+	}
+
+	private void add(JSONObject record) {
+		records.add(record);
+		byIdentifier.put(record.getString("identifier"), record);
+		String strataName = record.getString("stratum");
+		opened.put(strataName, Math.max(getOpened(strataName), record.getInt("envelope") + 1));
+	}
+
+	/* The number of envelopes opened so far in the named stratum. */
+	public synchronized int getOpened(String strataName) {
+		Integer count = opened.get(strataName);
+		return count == null ? 0 : count;
+	}
+
+	public synchronized List<JSONObject> getRecords() {
+		return new ArrayList<JSONObject>(records);
+	}
+}
@@ -0,0 +1,105 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import java.io.*;
+import java.util.*;
+import org.json.*;
+
+/**
+ * Writes exported participants, one at a time, as either of:
+ *
+ *   NDJSON, one { "identifier": id, "stratum": name, "arm": arm, "data": { ... } } object per line;
+ *   CSV with a header row of identifier, stratum, arm and one column per field, quoting any value holding
+ *   a comma or quote, with "" for a quote inside it.
+ *
+ * Only the chosen fields of each participant's data are written; a field the participant lacks is left
+ * empty in CSV and null in NDJSON. Either can be read back by ImportReader.
+ */
+public abstract class ExportWriter {
+
+	protected final Writer out;
+	protected final List<String> fields;
+	protected int written;
+
+	protected ExportWriter(Writer out, List<String> fields) {
+		this.out = out;
+		this.fields = fields;
+	}
+
+	/* A writer of the named format, csv or ndjson. */
+	public static ExportWriter open(String format, Writer out, List<String> fields) throws IOException {
+		if (format.equalsIgnoreCase("csv")) {
+			return new Csv(out, fields);
+		}
+		if (format.equalsIgnoreCase("ndjson")) {
+			return new Ndjson(out, fields);
+		}
+		throw new IllegalArgumentException("Unknown export format " +format +", not csv or ndjson.");
+	}
+
+	public abstract void write(String identifier, String stratum, String arm, JSONObject data) throws IOException;
+
+	/* The number of participants written so far. */
+	public int getWritten() { return written; }
+
+	public void close() throws IOException {
+		out.close();
+	}
+
+	private static class Ndjson extends ExportWriter {
+
+		Ndjson(Writer out, List<String> fields) {
+			super(out, fields);
+		}
+
+		public void write(String identifier, String stratum, String arm, JSONObject data) throws IOException {
+			JSONObject values = new JSONObject();
+			for (String field : fields) {
+				values.put(field, data.opt(field) == null ? JSONObject.NULL : data.opt(field));
+			}
+
+			JSONObject record = new JSONObject();
+			record.put("identifier", identifier);
+			record.put("stratum", stratum);
+			record.put("arm", arm);
+			record.put("data", values);
+			out.write(record.toString());
+			out.write('\n');
+			written++;
+		}
+	}
+
+	private static class Csv extends ExportWriter {
+
+		Csv(Writer out, List<String> fields) throws IOException {
+			super(out, fields);
+			out.write("identifier,stratum,arm");
+			for (String field : fields) {
+				out.write(',');
+				out.write(quote(field));
+			}
+			out.write('\n');
+		}
+
+		public void write(String identifier, String stratum, String arm, JSONObject data) throws IOException {
+			out.write(quote(identifier));
+			out.write(',');
+			out.write(quote(stratum));
+			out.write(',');
+			out.write(quote(arm));
+			for (String field : fields) {
+				Object value = data.opt(field);
+				out.write(',');
+				out.write(value == null || value == JSONObject.NULL ? "" : quote(value.toString()));
+			}
+			out.write('\n');
+			written++;
+		}
+
+		private static String quote(String s) {
+			if (s.indexOf(',') < 0 && s.indexOf('"') < 0) {
+				return s;
+			}
+			return "\"" +s.replace("\"", "\"\"") +"\"";
+		}
+	}
+}
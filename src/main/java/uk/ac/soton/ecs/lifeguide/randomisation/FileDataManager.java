@@ -0,0 +1,626 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import uk.ac.soton.ecs.lifeguide.randomisation.exception.*;
+
+import java.io.*;
+import java.util.*;
+import org.json.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Embedded persistence in a single local file, for sites without a database server. The file is an
+ * append-only log with one JSON record per line:
+ *
+ *   {"type": "trial", "id": n, "name": name, "definition": {...}}
+ *   {"type": "allocation", "trial": name, "id": n, "identifier": id, "data": ..., "levels": ...,
+ *    "arm": arm, "counters": {name: value}}
+ *   {"type": "counters", "trial": name, "id": 0, "counters": {name: value}}
+ *
+ * The whole log is read into memory when the file is first connected to, and every record is forced to
+ * disk before the call that wrote it returns. A torn record at the end of the file, left by a crash
+ * part way through a write, is discarded. All FileDataManagers on the same file in a JVM share one copy
+ * of its contents; the file must not be shared between processes.
+ */
+public class FileDataManager implements DataManager {
+
+	private static final Logger logger = LoggerFactory.getLogger(FileDataManager.class);
+
+	private static final Map<File, Store> stores = new HashMap<File, Store>();
+
+	private final File file;
+	private Store store;
+
+	private List<String> batch;
+	private List<Record> batchedRecords;
+
+	private List<Record> importedRecords;
+	private Set<String> importedIdentifiers;
+
+	public FileDataManager(File file) {
+		this.file = file.getAbsoluteFile();
+	}
+
+	public void connect() throws PersistenceException {
+		synchronized (stores) {
+			Store s = stores.get(file);
+			if (s == null) {
+				s = new Store(file);
+				stores.put(file, s);
+			}
+			s.users++;
+			store = s;
+		}
+	}
+
+	public void disconnect() {
+		synchronized (stores) {
+			if (store != null && --store.users == 0) {
+				stores.remove(file);
+				store.close();
+			}
+			store = null;
+		}
+	}
+
+	/* trials */
+
+	public Trial getTrial(String name) throws PersistenceException {
+		synchronized (store) {
+			TrialState state = store.trials.get(name);
+			return state == null ? null : state.build();
+		}
+	}
+
+	public void registerTrial(Trial trial) throws PersistenceException, InvalidTrialException {
+		synchronized (store) {
+			if (store.trials.containsKey(trial.getName())) {
+				throw new PersistenceException("Trial with name " +trial.getName() +" already exists.");
+			}
+
+			Record r = new Record();
+			r.type = "trial";
+			r.id = store.trials.size() + 1;
+			r.name = trial.getName();
+			r.definition = TrialLoader.toJSON(trial).toString();
+			store.write(Collections.singletonList(r.toJSON().toString()));
+			store.apply(r);
+			trial.setId(r.id);
+		}
+	}
+
+	/* participants */
+
+	public Participant getParticipant(String trialName, String identifier) throws PersistenceException {
+		synchronized (store) {
+			TrialState state = store.trials.get(trialName);
+			if (state == null) {
+				return null;
+			}
+			Record r = state.participants.get(identifier);
+			return r == null ? null : r.toParticipant(state.getDefinition());
+		}
+	}
+
+	public boolean participantExists(Trial trial, String identifier) {
+		synchronized (store) {
+			TrialState state = store.trials.get(trial.getName());
+			return state != null && state.participants.containsKey(identifier);
+		}
+	}
+
+	public synchronized Set<String> findParticipants(Trial trial, Collection<String> identifiers) {
+		Set<String> found = new HashSet<String>();
+		synchronized (store) {
+			TrialState state = store.trials.get(trial.getName());
+			for (String identifier : identifiers) {
+				if ((state != null && state.participants.containsKey(identifier)) || (importedIdentifiers != null && importedIdentifiers.contains(identifier))) {
+					found.add(identifier);
+				}
+			}
+		}
+		return found;
+	}
+
+	public long countParticipants(Trial trial) {
+		synchronized (store) {
+			TrialState state = store.trials.get(trial.getName());
+			return state == null ? 0 : state.participants.size();
+		}
+	}
+
+	public List<Participant> listParticipants(Trial trial, int first, int max) throws PersistenceException {
+		List<Participant> result = new ArrayList<Participant>();
+		synchronized (store) {
+			TrialState state = store.trials.get(trial.getName());
+			if (state == null) {
+				return result;
+			}
+			Trial definition = state.getDefinition();
+			int i = 0;
+			for (Record r : state.participants.values()) {
+				if (result.size() >= max) {
+					break;
+				}
+				if (i++ >= first) {
+					result.add(r.toParticipant(definition));
+				}
+			}
+		}
+		return result;
+	}
+
+	public List<AllocationCount> countAllocations(Trial trial) throws PersistenceException {
+		Map<String, Arm> arms = new HashMap<String, Arm>();
+		for (Arm a : trial.getArms()) {
+			arms.put(a.getName(), a);
+		}
+
+		// keyed by levels, or data for participants stored without levels, and arm
+		Map<List<String>, long[]> counts = new HashMap<List<String>, long[]>();
+		synchronized (store) {
+			TrialState state = store.trials.get(trial.getName());
+			if (state == null) {
+				return new ArrayList<AllocationCount>();
+			}
+			for (Record r : state.participants.values()) {
+				List<String> key = Arrays.asList(r.levels, r.levels == null ? r.data : null, r.arm);
+				long[] count = counts.get(key);
+				if (count == null) {
+					count = new long[1];
+					counts.put(key, count);
+				}
+				count[0]++;
+			}
+		}
+
+		List<AllocationCount> result = new ArrayList<AllocationCount>(counts.size());
+		for (Map.Entry<List<String>, long[]> e : counts.entrySet()) {
+			Arm arm = arms.get(e.getKey().get(2));
+			if (arm != null) {
+				result.add(new AllocationCount(e.getKey().get(0), e.getKey().get(1), arm, e.getValue()[0]));
+			}
+		}
+		return result;
+	}
+
+	/* The records are already in memory; the cursor walks a copy of the list of them. */
+	public ParticipantCursor exportParticipants(Trial trial) throws PersistenceException {
+		final Map<String, Arm> arms = new HashMap<String, Arm>();
+		for (Arm a : trial.getArms()) {
+			arms.put(a.getName(), a);
+		}
+
+		final Iterator<Record> records;
+		synchronized (store) {
+			TrialState state = store.trials.get(trial.getName());
+			records = state == null ? Collections.<Record>emptyList().iterator() : new ArrayList<Record>(state.participants.values()).iterator();
+		}
+
+		return new ParticipantCursor() {
+			private Record record;
+
+			public boolean next() {
+				record = records.hasNext() ? records.next() : null;
+				return record != null;
+			}
+
+			public String getIdentifier() { return record.identifier; }
+			public String getData() { return record.data; }
+			public String getLevels() { return record.levels; }
+			public Arm getArm() { return arms.get(record.arm); }
+			public void close() {}
+		};
+	}
+
+	public void writeCounters(Trial trial, Map<String, Double> counters) throws PersistenceException {
+		Record r = new Record();
+		r.type = "counters";
+		r.name = trial.getName();
+		r.counters = new HashMap<String, Double>(counters);
+		synchronized (store) {
+			store.write(Collections.singletonList(r.toJSON().toString()));
+			store.apply(r);
+		}
+	}
+
+	/* allocations */
+
+	public synchronized boolean update(Trial trial, Participant participant, Arm arm, Map<String, Double> counters) throws PersistenceException {
+		participant.setAllocatedArm(arm);
+		participant.setTrial(trial);
+
+		Record r = new Record();
+		r.type = "allocation";
+		r.name = trial.getName();
+		r.identifier = participant.getIdentifier();
+		r.data = participant.getData();
+		r.levels = participant.getLevels() == null ? null : joinLevels(participant.getLevels());
+		r.arm = arm.getName();
+		r.counters = new HashMap<String, Double>(counters);
+
+		if (batch != null) {
+			// ids are given out when the batch is written
+			batchedRecords.add(r);
+			return true;
+		}
+
+		synchronized (store) {
+			r.id = store.nextParticipantId;
+			store.write(Collections.singletonList(r.toJSON().toString()));
+			store.apply(r);
+		}
+		participant.setId(r.id);
+		return true;
+	}
+
+	public synchronized void beginBatch() {
+		batch = new ArrayList<String>();
+		batchedRecords = new ArrayList<Record>();
+	}
+
+	public synchronized void commitBatch() throws PersistenceException {
+		try {
+			synchronized (store) {
+				for (Record r : batchedRecords) {
+					r.id = store.nextParticipantId + batch.size();
+					batch.add(r.toJSON().toString());
+				}
+				store.write(batch);
+				for (Record r : batchedRecords) {
+					store.apply(r);
+				}
+			}
+		}
+		finally {
+			batch = null;
+			batchedRecords = null;
+		}
+	}
+
+	public synchronized void rollbackBatch() {
+		batch = null;
+		batchedRecords = null;
+	}
+
+	/* The whole file is held in memory anyway, so an import is kept until it is committed and then written at once. */
+
+	public synchronized void beginImport(Trial trial) {
+		importedRecords = new ArrayList<Record>();
+		importedIdentifiers = new HashSet<String>();
+	}
+
+	public synchronized void importParticipants(Trial trial, List<Participant> participants) {
+		for (Participant p : participants) {
+			Record r = new Record();
+			r.type = "allocation";
+			r.name = trial.getName();
+			r.identifier = p.getIdentifier();
+			r.data = p.getData();
+			r.levels = p.getLevels() == null ? null : joinLevels(p.getLevels());
+			r.arm = p.getAllocatedArm().getName();
+			r.counters = new HashMap<String, Double>();
+			importedRecords.add(r);
+			importedIdentifiers.add(r.identifier);
+		}
+	}
+
+	/* The counters go with the last participant, so they are only applied if every participant was written. */
+	public synchronized void commitImport(Trial trial, Map<String, Double> counters) throws PersistenceException {
+		try {
+			if (importedRecords.isEmpty()) {
+				return;
+			}
+			importedRecords.get(importedRecords.size() - 1).counters.putAll(counters);
+
+			synchronized (store) {
+				List<String> lines = new ArrayList<String>(importedRecords.size());
+				for (Record r : importedRecords) {
+					r.id = store.nextParticipantId + lines.size();
+					lines.add(r.toJSON().toString());
+				}
+				store.write(lines);
+				for (Record r : importedRecords) {
+					store.apply(r);
+				}
+			}
+		}
+		finally {
+			importedRecords = null;
+			importedIdentifiers = null;
+		}
+	}
+
+	public synchronized void rollbackImport() {
+		importedRecords = null;
+		importedIdentifiers = null;
+	}
+
+	private static String joinLevels(int[] levels) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < levels.length; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(levels[i]);
+		}
+		return sb.toString();
+	}
+
+	/* The contents of one file. Access is synchronised on the Store. */
+	private static class Store {
+
+		private final File file;
+		private final Map<String, TrialState> trials = new HashMap<String, TrialState>();
+		private int nextParticipantId = 1;
+		private int users;
+
+		private FileOutputStream out;
+		private Writer writer;
+		private boolean broken;
+
+		public Store(File file) throws PersistenceException {
+			this.file = file;
+			try {
+				long valid = load();
+				out = new FileOutputStream(file, true);
+				if (out.getChannel().size() > valid) {
+					logger.warn("Discarding unreadable record at the end of " +file);
+					out.getChannel().truncate(valid);
+				}
+				writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+			}
+			catch (IOException e) {
+				throw new PersistenceException("Could not open " +file, e);
+			}
+		}
+
+		/* Reads every record, returning the length of the file up to the end of the last complete one. */
+		private long load() throws IOException, PersistenceException {
+			if (!file.exists()) {
+				return 0;
+			}
+
+			long valid = 0;
+			int lines = 0;
+			InputStream in = new BufferedInputStream(new FileInputStream(file));
+			try {
+				ByteArrayOutputStream line = new ByteArrayOutputStream();
+				int b;
+				while ((b = in.read()) != -1) {
+					if (b != '\n') {
+						line.write(b);
+						continue;
+					}
+					lines++;
+					Record r;
+					try {
+						r = Record.fromJSON(new JSONObject(line.toString("UTF-8")));
+					}
+					catch (JSONException e) {
+						// nothing after a torn record was ever acknowledged
+						break;
+					}
+					try {
+						apply(r);
+					}
+					catch (PersistenceException e) {
+						throw new PersistenceException("Line " +lines +" of " +file +": " +e.getMessage());
+					}
+					valid += line.size() + 1;
+					line.reset();
+				}
+			}
+			finally {
+				in.close();
+			}
+			return valid;
+		}
+
+		/**
+		 * Appends the lines and syncs them. If the write fails the file is cut back to its length before it,
+		 * so a torn line never has later records appended after it; if that fails too the store refuses any
+		 * further writes, since load() would stop at the torn line and lose everything after it.
+		 */
+		public void write(List<String> lines) throws PersistenceException {
+			if (broken) {
+				throw new PersistenceException("An earlier write to " +file +" could not be undone, so it is read only until reopened");
+			}
+			long length;
+			try {
+				length = out.getChannel().size();
+			}
+			catch (IOException e) {
+				throw new PersistenceException("Could not write to " +file, e);
+			}
+
+			try {
+				for (String line : lines) {
+					writer.write(line);
+					writer.write('\n');
+				}
+				writer.flush();
+				out.getFD().sync();
+			}
+			catch (IOException e) {
+				try {
+					// the old writer may still hold part of the lines
+					writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+					out.getChannel().truncate(length);
+					out.getFD().sync();
+				}
+				catch (IOException ex) {
+					logger.error("Could not cut " +file +" back after a failed write", ex);
+					broken = true;
+				}
+				throw new PersistenceException("Could not write to " +file, e);
+			}
+		}
+
+		public void apply(Record r) throws PersistenceException {
+			if (r.type.equals("trial")) {
+				trials.put(r.name, new TrialState(r));
+				return;
+			}
+
+			TrialState state = trials.get(r.name);
+			if (state == null) {
+				throw new PersistenceException("A " +r.type +" record names trial " +r.name +", which has no definition");
+			}
+			if (r.type.equals("counters")) {
+				state.parameters.putAll(r.counters);
+				return;
+			}
+			state.participants.put(r.identifier, r);
+			state.parameters.putAll(r.counters);
+			nextParticipantId = Math.max(nextParticipantId, r.id + 1);
+		}
+
+		public void close() {
+			try {
+				writer.close();
+			}
+			catch (IOException e) {
+				logger.error("Could not close " +file, e);
+			}
+		}
+	}
+
+	/* A registered trial: its definition, latest parameters and participants in the order they were added. */
+	private static class TrialState {
+
+		private final Record trial;
+		private final Map<String, Double> parameters = new HashMap<String, Double>();
+		private final Map<String, Record> participants = new LinkedHashMap<String, Record>();
+
+		public TrialState(Record trial) {
+			this.trial = trial;
+		}
+
+		private Trial definition;
+
+		/**
+		 * The trial as parsed once, with the parameters it was registered with but none of the counters
+		 * stored since, shared by the participants read from the store. It must not be changed.
+		 */
+		public Trial getDefinition() throws PersistenceException {
+			if (definition == null) {
+				definition = parse();
+			}
+			return definition;
+		}
+
+		/* A fresh copy of the trial, so callers are free to change it. */
+		public Trial build() throws PersistenceException {
+			Trial t = parse();
+			t.getParameters().putAll(parameters);
+			t.getCompiled();
+			return t;
+		}
+
+		private Trial parse() throws PersistenceException {
+			Trial t;
+			try {
+				t = TrialLoader.parseTrial(trial.definition);
+			}
+			catch (InvalidTrialException e) {
+				throw new PersistenceException("Stored definition of " +trial.name +" is invalid", e);
+			}
+			t.setId(trial.id);
+			t.setName(trial.name);
+			for (Arm arm : t.getArms()) {
+				arm.setId(arm.getArmOrder() + 1);
+			}
+			return t;
+		}
+	}
+
+	/* One line of the file. */
+	private static class Record {
+		public String type;
+		public int id;
+		public String name;
+		public String definition;
+		public String identifier;
+		public String data;
+		public String levels;
+		public String arm;
+		public Map<String, Double> counters;
+
+		public JSONObject toJSON() {
+			JSONObject json = new JSONObject();
+			json.put("type", type);
+			json.put("id", id);
+			if (type.equals("trial")) {
+				json.put("name", name);
+				json.put("definition", new JSONObject(definition));
+				return json;
+			}
+			json.put("trial", name);
+			if (type.equals("counters")) {
+				json.put("counters", new JSONObject(counters));
+				return json;
+			}
+			json.put("identifier", identifier);
+			json.put("data", data == null ? JSONObject.NULL : data);
+			json.put("levels", levels == null ? JSONObject.NULL : levels);
+			json.put("arm", arm);
+			json.put("counters", new JSONObject(counters));
+			return json;
+		}
+
+		public static Record fromJSON(JSONObject json) {
+			Record r = new Record();
+			r.type = json.getString("type");
+			r.id = json.getInt("id");
+			if (r.type.equals("trial")) {
+				r.name = json.getString("name");
+				r.definition = json.getJSONObject("definition").toString();
+				return r;
+			}
+			r.name = json.getString("trial");
+			if (!r.type.equals("counters")) {
+				r.identifier = json.getString("identifier");
+				r.data = json.isNull("data") ? null : json.getString("data");
+				r.levels = json.isNull("levels") ? null : json.getString("levels");
+				r.arm = json.getString("arm");
+			}
+			r.counters = new HashMap<String, Double>();
+			JSONObject counters = json.getJSONObject("counters");
+			String[] names = JSONObject.getNames(counters);
+			if (names != null) {
+				for (String name : names) {
+					r.counters.put(name, counters.getDouble(name));
+				}
+			}
+			return r;
+		}
+
+		public Participant toParticipant(Trial trial) {
+			Participant p = new Participant();
+			p.setId(id);
+			p.setTrial(trial);
+			p.setIdentifier(identifier);
+			p.setData(data);
+			if (levels != null) {
+				p.setLevels(levels.length() == 0 ? new int[0] : parseLevels(levels));
+			}
+			for (Arm a : trial.getArms()) {
+				if (a.getName().equals(arm)) {
+					p.setAllocatedArm(a);
+				}
+			}
+			return p;
+		}
+
+		private static int[] parseLevels(String levels) {
+			String[] parts = levels.split(",");
+			int[] result = new int[parts.length];
+			for (int i = 0; i < parts.length; i++) {
+				result[i] = Integer.parseInt(parts[i]);
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,549 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import uk.ac.soton.ecs.lifeguide.randomisation.exception.*;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+
+import org.json.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.hibernate.*;
+import org.hibernate.cfg.AnnotationConfiguration;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.jdbc.Work;
+
+/**
+ * Hibernate backed persistence for trials and participants, using the database configured in
+ * hibernate.cfg.xml. Each HibernateDataManager owns one session; its methods synchronise on the
+ * instance so it may be shared between threads.
+ */
+public class HibernateDataManager implements DataManager {
+
+	private static SessionFactory factory;
+	private Session session;
+
+	private Transaction batch;
+	private List<Participant> batchedParticipants = new ArrayList<Participant>();
+	private Map<String, Double> batchedCounters = new HashMap<String, Double>();
+	private int batchedTrialId;
+
+	private StatelessSession importSession;
+	private Transaction importTransaction;
+
+	public HibernateDataManager() throws PersistenceException {
+		getFactory();
+	}
+
+	/* The session factory is expensive to build, so it is shared by every DataManager in the JVM. */
+	private static synchronized SessionFactory getFactory() throws PersistenceException {
+		if (factory == null) {
+			try {
+				factory = new AnnotationConfiguration().
+					configure().
+					addPackage("uk.ac.soton.ecs.lifeguide.randomisation").
+					addAnnotatedClass(Trial.class).
+					addAnnotatedClass(Participant.class).
+					addAnnotatedClass(Arm.class).
+					addAnnotatedClass(Variable.class).
+					addAnnotatedClass(Stratum.class).
+					addAnnotatedClass(RangeStratum.class).
+					buildSessionFactory();
+			}
+			catch (Exception e) { 
+				throw new PersistenceException("Failed to create sessionFactory object.", e); 
+			}
+		}
+		return factory;
+	}
+
+	public synchronized void connect() {
+		session = factory.openSession();
+	}
+
+	public synchronized void disconnect() {
+		session.close();
+	}
+
+	/**
+	 * Returns the named trial detached from the session, with everything the allocation path uses already
+	 * loaded. Allocations then never cause its graph to be dirty checked or re-saved; update() writes the
+	 * participant and the changed counters directly.
+	 *
+	 * Once a trial has been loaded its definition comes from the second-level cache, so loading it again
+	 * only reads its parameters.
+	 */
+	public synchronized Trial getTrial(String name) {
+		Query q = session.getNamedQuery("Trial.byName");
+		q.setParameter("name", name);
+		@SuppressWarnings("unchecked")
+		List<Trial> result = q.list();
+		if (result.isEmpty()) {
+			// the miss may be cached from before another process registered the trial
+			q.setCacheMode(CacheMode.REFRESH);
+			@SuppressWarnings("unchecked")
+			List<Trial> refreshed = q.list();
+			result = refreshed;
+		}
+		if (result.size() > 0) {
+			Trial trial = result.get(0);
+			// minimisation variables' strata are only read once the strategy is built, after the trial is detached
+			for (Variable v : trial.getVariables()) {
+				Hibernate.initialize(v.getStrata());
+			}
+			trial.getCompiled();
+			Hibernate.initialize(trial.getParameters());
+			session.evict(trial);
+			return trial;
+		}
+		else {
+			return null;
+		}
+	}
+
+	public synchronized void registerTrial(Trial trial) throws PersistenceException, InvalidTrialException {
+
+		Transaction tx = null;
+		Integer generatedId = null;
+		try {
+			tx = session.beginTransaction();
+			generatedId = (Integer) session.save(trial);
+			tx.commit();
+		}
+		catch (HibernateException e) {
+			session.close();
+			session = factory.openSession();
+			throw new PersistenceException("Could not register trial", e);
+		}
+	}
+
+	public synchronized Participant getParticipant(String trialName, String identifier) {
+		Query q = session.getNamedQuery("Participant.byIdentifier");
+		// don't force pending batched inserts out just to look for a duplicate
+		q.setFlushMode(FlushMode.COMMIT);
+		q.setParameter("identifier", identifier);
+		q.setParameter("trialName", trialName);
+		@SuppressWarnings("unchecked")
+		List<Participant> result = q.list();
+		if (result.size() > 0) {
+			return result.get(0);
+		}
+		else {
+			return null;
+		}
+	}
+
+	/* Participant queries. Trials never load their participants, so these are the only way to reach them. */
+
+	public synchronized boolean participantExists(Trial trial, String identifier) {
+		Query q = session.getNamedQuery("Participant.exists");
+		q.setFlushMode(FlushMode.COMMIT);
+		q.setParameter("trialId", trial.getId());
+		q.setParameter("identifier", identifier);
+		return ((Number) q.uniqueResult()).longValue() > 0;
+	}
+
+	/* During an import this looks through the import's own connection, so it sees the rows imported so far. */
+	public synchronized Set<String> findParticipants(Trial trial, Collection<String> identifiers) throws PersistenceException {
+		Set<String> found = new HashSet<String>();
+		if (identifiers.isEmpty()) {
+			return found;
+		}
+
+		try {
+			Query q;
+			if (importSession != null) {
+				q = importSession.getNamedQuery("Participant.find");
+			}
+			else {
+				q = session.getNamedQuery("Participant.find");
+				q.setFlushMode(FlushMode.COMMIT);
+			}
+			q.setParameter("trialId", trial.getId());
+			q.setParameterList("identifiers", identifiers);
+			for (Object identifier : q.list()) {
+				found.add((String) identifier);
+			}
+		}
+		catch (HibernateException e) {
+			throw new PersistenceException("Could not look up participants", e);
+		}
+		return found;
+	}
+
+	public synchronized long countParticipants(Trial trial) {
+		Query q = session.getNamedQuery("Participant.count");
+		q.setParameter("trialId", trial.getId());
+		return ((Number) q.uniqueResult()).longValue();
+	}
+
+	/* Returns up to max participants in id order, starting at first. They are detached from the session. */
+	public synchronized List<Participant> listParticipants(Trial trial, int first, int max) {
+		Query q = session.getNamedQuery("Participant.list");
+		q.setParameter("trialId", trial.getId());
+		q.setFirstResult(first);
+		q.setMaxResults(max);
+		@SuppressWarnings("unchecked")
+		List<Participant> result = q.list();
+		for (Participant p : result) {
+			session.evict(p);
+		}
+		return result;
+	}
+
+	public synchronized List<AllocationCount> countAllocations(Trial trial) throws PersistenceException {
+		Map<Integer, Arm> arms = new HashMap<Integer, Arm>();
+		for (Arm a : trial.getArms()) {
+			arms.put(a.getId(), a);
+		}
+
+		List<AllocationCount> counts = new ArrayList<AllocationCount>();
+		try {
+			Query q = session.getNamedQuery("Participant.countByLevels");
+			q.setParameter("trialId", trial.getId());
+			@SuppressWarnings("unchecked")
+			List<Object[]> rows = q.list();
+			for (Object[] row : rows) {
+				Arm arm = arms.get(row[1]);
+				if (arm != null) {
+					counts.add(new AllocationCount((String) row[0], null, arm, ((Number) row[2]).longValue()));
+				}
+			}
+
+			// participants stored before levels were kept
+			q = session.getNamedQuery("Participant.countByData");
+			q.setParameter("trialId", trial.getId());
+			@SuppressWarnings("unchecked")
+			List<Object[]> legacyRows = q.list();
+			for (Object[] row : legacyRows) {
+				Arm arm = arms.get(row[1]);
+				if (arm != null) {
+					counts.add(new AllocationCount(null, (String) row[0], arm, ((Number) row[2]).longValue()));
+				}
+			}
+		}
+		catch (HibernateException e) {
+			throw new PersistenceException("Could not count allocations", e);
+		}
+		return counts;
+	}
+
+	/**
+	 * Reads the participants through a stateless session of their own with a forward-only cursor, so
+	 * nothing is cached and allocations carry on while a trial is exported.
+	 */
+	public synchronized ParticipantCursor exportParticipants(Trial trial) throws PersistenceException {
+		final Map<Integer, Arm> arms = new HashMap<Integer, Arm>();
+		for (Arm a : trial.getArms()) {
+			arms.put(a.getId(), a);
+		}
+
+		final StatelessSession exportSession = factory.openStatelessSession();
+		try {
+			Query q = exportSession.getNamedQuery("Participant.export");
+			q.setParameter("trialId", trial.getId());
+			// MySQL streams rows one at a time, rather than reading the whole result first, only at this fetch size
+			q.setFetchSize(Integer.MIN_VALUE);
+			q.setReadOnly(true);
+			final ScrollableResults results = q.scroll(ScrollMode.FORWARD_ONLY);
+
+			return new ParticipantCursor() {
+				private Object[] row;
+
+				public boolean next() throws PersistenceException {
+					try {
+						row = results.next() ? results.get() : null;
+						return row != null;
+					}
+					catch (HibernateException e) {
+						throw new PersistenceException("Could not read participants", e);
+					}
+				}
+
+				public String getIdentifier() { return (String) row[0]; }
+				public String getData() { return (String) row[1]; }
+				public String getLevels() { return (String) row[2]; }
+				public Arm getArm() { return arms.get(row[3]); }
+
+				public void close() {
+					try {
+						results.close();
+					}
+					finally {
+						exportSession.close();
+					}
+				}
+			};
+		}
+		catch (HibernateException e) {
+			exportSession.close();
+			throw new PersistenceException("Could not export participants", e);
+		}
+	}
+
+	public synchronized void writeCounters(Trial trial, Map<String, Double> counters) throws PersistenceException {
+		Transaction tx = null;
+		try {
+			tx = session.beginTransaction();
+			writeCounters(trial.getId(), counters);
+			tx.commit();
+		}
+		catch (HibernateException e) {
+			session.close();
+			session = factory.openSession();
+			throw new PersistenceException("Could not write counters", e);
+		}
+	}
+
+	/* Batches: update() only queues work until commitBatch() is called. */
+
+	public synchronized void beginBatch() throws PersistenceException {
+		try {
+			batch = session.beginTransaction();
+		}
+		catch (HibernateException e) {
+			throw new PersistenceException("Could not begin batch", e);
+		}
+	}
+
+	public synchronized void commitBatch() throws PersistenceException {
+		try {
+			writeCounters(batchedTrialId, batchedCounters);
+			batch.commit();
+			for (Participant p : batchedParticipants) {
+				session.evict(p);
+			}
+		}
+		catch (HibernateException e) {
+			session.close();
+			session = factory.openSession();
+			throw new PersistenceException("Could not commit batch", e);
+		}
+		finally {
+			batch = null;
+			batchedParticipants.clear();
+			batchedCounters.clear();
+		}
+	}
+
+	public synchronized void rollbackBatch() {
+		try {
+			if (batch != null) {
+				batch.rollback();
+			}
+		}
+		catch (HibernateException e) {
+		}
+		finally {
+			session.close();
+			session = factory.openSession();
+			batch = null;
+			batchedParticipants.clear();
+			batchedCounters.clear();
+		}
+	}
+
+	/**
+	 * Records an allocation by inserting the participant and writing only the counters it changed, so the cost
+	 * does not grow with the size of the trial. counters maps parameter names to their new values.
+	 */
+	public synchronized boolean update(Trial trial, Participant participant, Arm arm, Map<String, Double> counters) throws PersistenceException {
+		participant.setAllocatedArm(arm);
+		participant.setTrial(trial);
+
+		if (batch != null) {
+			// counters are coalesced and written once when the batch is committed
+			try {
+				session.save(participant);
+			}
+			catch (HibernateException e) {
+				throw new PersistenceException("Could not allocate", e);
+			}
+			batchedParticipants.add(participant);
+			batchedCounters.putAll(counters);
+			batchedTrialId = trial.getId();
+			return true;
+		}
+
+		Transaction tx = null;
+		try {
+			tx = session.beginTransaction();
+			session.save(participant);
+			writeCounters(trial.getId(), counters);
+			tx.commit();
+			session.evict(participant);
+		}
+		catch (HibernateException e) {
+			session.close();
+			session = factory.openSession();
+			throw new PersistenceException("Could not allocate", e);
+		}
+		return true;
+	}
+
+	/* Imports go through a stateless session, so imported participants are never held by a persistence context. */
+
+	public synchronized void beginImport(Trial trial) throws PersistenceException {
+		try {
+			importSession = factory.openStatelessSession();
+			importTransaction = importSession.beginTransaction();
+		}
+		catch (HibernateException e) {
+			closeImport();
+			throw new PersistenceException("Could not begin import", e);
+		}
+	}
+
+	/**
+	 * Inserts the chunk as one JDBC batch. Participant ids come from the database, which Hibernate will not
+	 * batch inserts for, so the rows are written directly on the session's connection.
+	 */
+	public synchronized void importParticipants(Trial trial, List<Participant> participants) throws PersistenceException {
+		try {
+			PreparedStatement insert = importSession.connection().prepareStatement("insert into participants (trial_id, identifier, allocated_arm_id, data, levels) values (?, ?, ?, ?, ?)");
+			try {
+				for (Participant p : participants) {
+					insert.setInt(1, trial.getId());
+					insert.setString(2, p.getIdentifier());
+					insert.setInt(3, p.getAllocatedArm().getId());
+					if (p.getData() == null) {
+						insert.setNull(4, Types.VARCHAR);
+					}
+					else {
+						insert.setString(4, p.getData());
+					}
+					insert.setString(5, joinLevels(p.getLevels()));
+					insert.addBatch();
+				}
+				insert.executeBatch();
+			}
+			finally {
+				insert.close();
+			}
+		}
+		catch (SQLException e) {
+			throw new PersistenceException("Could not import participants", e);
+		}
+		catch (HibernateException e) {
+			throw new PersistenceException("Could not import participants", e);
+		}
+	}
+
+	public synchronized void commitImport(Trial trial, Map<String, Double> counters) throws PersistenceException {
+		try {
+			writeCounters(importSession.connection(), trial.getId(), counters);
+			importTransaction.commit();
+		}
+		catch (SQLException e) {
+			throw new PersistenceException("Could not commit import", e);
+		}
+		catch (HibernateException e) {
+			throw new PersistenceException("Could not commit import", e);
+		}
+		finally {
+			closeImport();
+		}
+	}
+
+	public synchronized void rollbackImport() {
+		try {
+			if (importTransaction != null) {
+				importTransaction.rollback();
+			}
+		}
+		catch (HibernateException e) {
+		}
+		finally {
+			closeImport();
+		}
+	}
+
+	private void closeImport() {
+		try {
+			if (importSession != null) {
+				importSession.close();
+			}
+		}
+		catch (HibernateException e) {
+		}
+		finally {
+			importSession = null;
+			importTransaction = null;
+		}
+	}
+
+	private static String joinLevels(int[] levels) {
+		if (levels == null) {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < levels.length; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(levels[i]);
+		}
+		return sb.toString();
+	}
+
+	private void writeCounters(final int trialId, final Map<String, Double> counters) {
+		if (counters.isEmpty()) {
+			return;
+		}
+
+		session.doWork(new Work() {
+			public void execute(Connection connection) throws SQLException {
+				writeCounters(connection, trialId, counters);
+			}
+		});
+	}
+
+	/* Updates the named rows of the trial's parameters table in one JDBC batch, inserting any that are missing. */
+	private static void writeCounters(Connection connection, int trialId, Map<String, Double> counters) throws SQLException {
+		if (counters.isEmpty()) {
+			return;
+		}
+
+		List<String> names = new ArrayList<String>(counters.keySet());
+		List<String> missing = new ArrayList<String>();
+
+		PreparedStatement update = connection.prepareStatement("update parameters set value = ? where trial_id = ? and name = ?");
+		try {
+			for (String name : names) {
+				update.setDouble(1, counters.get(name));
+				update.setInt(2, trialId);
+				update.setString(3, name);
+				update.addBatch();
+			}
+			int[] updated = update.executeBatch();
+			for (int i = 0; i < updated.length; i++) {
+				if (updated[i] == 0) {
+					missing.add(names.get(i));
+				}
+			}
+		}
+		finally {
+			update.close();
+		}
+
+		if (missing.isEmpty()) {
+			return;
+		}
+
+		PreparedStatement insert = connection.prepareStatement("insert into parameters (trial_id, name, value) values (?, ?, ?)");
+		try {
+			for (String name : missing) {
+				insert.setInt(1, trialId);
+				insert.setString(2, name);
+				insert.setDouble(3, counters.get(name));
+				insert.addBatch();
+			}
+			insert.executeBatch();
+		}
+		finally {
+			insert.close();
+		}
+	}
+}
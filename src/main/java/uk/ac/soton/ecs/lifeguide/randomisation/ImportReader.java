@@ -0,0 +1,177 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import uk.ac.soton.ecs.lifeguide.randomisation.exception.*;
+
+import java.io.*;
+import java.util.*;
+import org.json.*;
+
+/**
+ * Reads already allocated participants to import, one at a time, from either of:
+ *
+ *   NDJSON, one { "identifier": id, "data": { ... }, "arm": arm } object per line;
+ *   CSV with a header row naming an identifier column, an arm column and one column per variable, whose
+ *   values make up the participant's data. Fields may be quoted, with "" for a quote inside them.
+ *
+ * Blank lines are skipped.
+ */
+public abstract class ImportReader {
+
+	protected final BufferedReader in;
+	protected int line;
+	protected int read;
+
+	protected String identifier;
+	protected String data;
+	protected String arm;
+
+	protected ImportReader(BufferedReader in) {
+		this.in = in;
+	}
+
+	/* A reader for the file, CSV if its name ends in .csv and NDJSON otherwise. */
+	public static ImportReader open(File file) throws IOException, ParticipantLoadException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		if (file.getName().toLowerCase().endsWith(".csv")) {
+			try {
+				return new Csv(in);
+			}
+			catch (ParticipantLoadException e) {
+				in.close();
+				throw e;
+			}
+		}
+		return new Ndjson(in);
+	}
+
+	/* Moves to the next participant, returning false at the end of the input. */
+	public abstract boolean next() throws IOException, ParticipantLoadException;
+
+	public String getIdentifier() { return identifier; }
+	public String getData() { return data; }
+	public String getArm() { return arm; }
+
+	/* The number of participants read so far. */
+	public int getRead() { return read; }
+
+	/* The line the current participant was read from, counting from one. */
+	public int getLine() { return line; }
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	protected String readLine() throws IOException {
+		String s;
+		do {
+			s = in.readLine();
+			line++;
+		} while (s != null && s.trim().length() == 0);
+		return s;
+	}
+
+	private static class Ndjson extends ImportReader {
+
+		Ndjson(BufferedReader in) {
+			super(in);
+		}
+
+		public boolean next() throws IOException, ParticipantLoadException {
+			String s = readLine();
+			if (s == null) {
+				return false;
+			}
+			try {
+				JSONObject record = new JSONObject(s);
+				identifier = record.getString("identifier");
+				arm = record.getString("arm");
+				data = record.has("data") && !record.isNull("data") ? record.get("data").toString() : null;
+			}
+			catch (JSONException e) {
+				throw new ParticipantLoadException(e.getMessage(), line);
+			}
+			read++;
+			return true;
+		}
+	}
+
+	private static class Csv extends ImportReader {
+
+		private final String[] columns;
+		private final int identifierColumn;
+		private final int armColumn;
+
+		Csv(BufferedReader in) throws IOException, ParticipantLoadException {
+			super(in);
+			String header = readLine();
+			if (header == null) {
+				throw new ParticipantLoadException("The file is empty.", line);
+			}
+			columns = split(header);
+			identifierColumn = Arrays.asList(columns).indexOf("identifier");
+			armColumn = Arrays.asList(columns).indexOf("arm");
+			if (identifierColumn < 0 || armColumn < 0) {
+				throw new ParticipantLoadException("The header must name identifier and arm columns.", line);
+			}
+		}
+
+		public boolean next() throws IOException, ParticipantLoadException {
+			String s = readLine();
+			if (s == null) {
+				return false;
+			}
+			String[] fields = split(s);
+			if (fields.length != columns.length) {
+				throw new ParticipantLoadException(fields.length +" fields, not " +columns.length +".", line);
+			}
+
+			JSONObject json = new JSONObject();
+			for (int i = 0; i < columns.length; i++) {
+				if (i != identifierColumn && i != armColumn) {
+					json.put(columns[i], fields[i]);
+				}
+			}
+			identifier = fields[identifierColumn];
+			arm = fields[armColumn];
+			data = json.toString();
+			read++;
+			return true;
+		}
+
+		private String[] split(String s) throws ParticipantLoadException {
+			List<String> fields = new ArrayList<String>();
+			StringBuilder field = new StringBuilder();
+			boolean quoted = false;
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				if (quoted) {
+					if (c == '"' && i + 1 < s.length() && s.charAt(i + 1) == '"') {
+						field.append('"');
+						i++;
+					}
+					else if (c == '"') {
+						quoted = false;
+					}
+					else {
+						field.append(c);
+					}
+				}
+				else if (c == '"') {
+					quoted = true;
+				}
+				else if (c == ',') {
+					fields.add(field.toString());
+					field.setLength(0);
+				}
+				else {
+					field.append(c);
+				}
+			}
+			if (quoted) {
+				throw new ParticipantLoadException("Unclosed quote.", line);
+			}
+			fields.add(field.toString());
+			return fields.toArray(new String[fields.size()]);
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import uk.ac.soton.ecs.lifeguide.randomisation.exception.*;
+
+import java.util.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background thread that copies journalled allocations into the database, in journal order. Replaying an
+ * entry twice is harmless: participants that already exist are skipped and counters are written as
+ * absolute values. Entries that fail are retried until they succeed.
+ */
+public class JournalReplicator extends Thread {
+
+	private static final Logger logger = LoggerFactory.getLogger(JournalReplicator.class);
+
+	private static final long RETRY_DELAY = 5000;
+
+	private final AllocationJournal journal;
+	private final Map<String, Trial> trials = new HashMap<String, Trial>();
+	private DataManager database;
+
+	public JournalReplicator(AllocationJournal journal) {
+		super("journal-replicator");
+		this.journal = journal;
+		setDaemon(true);
+	}
+
+	public void run() {
+		try {
+			while (!isInterrupted()) {
+				AllocationJournal.Entry e = journal.takeUnreplicated();
+				while (!replicate(e)) {
+					Thread.sleep(RETRY_DELAY);
+				}
+				journal.markReplicated(e);
+			}
+		}
+		catch (InterruptedException e) {
+		}
+		finally {
+			if (database != null) {
+				database.disconnect();
+			}
+		}
+	}
+
+	private boolean replicate(AllocationJournal.Entry e) {
+		try {
+			if (database == null) {
+				database = DataManagerFactory.create();
+				database.connect();
+			}
+
+			Trial trial = trials.get(e.trial);
+			if (trial == null) {
+				trial = database.getTrial(e.trial);
+				if (trial == null) {
+					logger.error("Dropping journal entry " +e.sequence +" for unknown trial " +e.trial);
+					return true;
+				}
+				trials.put(e.trial, trial);
+			}
+
+			if (database.participantExists(trial, e.identifier)) {
+				return true;
+			}
+
+			Arm arm = null;
+			for (Arm a : trial.getArms()) {
+				if (a.getName().equals(e.arm)) {
+					arm = a;
+				}
+			}
+			if (arm == null) {
+				// retrying cannot help, and would hold up every entry after it
+				logger.error("Dropping journal entry " +e.sequence +", which allocates " +e.identifier +" to " +e.arm +", not an arm of " +e.trial);
+				return true;
+			}
+
+			Participant participant = new Participant();
+			participant.setIdentifier(e.identifier);
+			participant.setData(e.data);
+			if (e.levels != null) {
+				participant.setLevels(e.levels.length() == 0 ? new int[0] : parseLevels(e.levels));
+			}
+
+			database.update(trial, participant, arm, e.counters);
+			return true;
+		}
+		catch (PersistenceException ex) {
+			logger.error("Could not replicate journal entry " +e.sequence +", will retry", ex);
+			trials.clear();
+			return false;
+		}
+		catch (RuntimeException ex) {
+			logger.error("Could not replicate journal entry " +e.sequence +", will retry", ex);
+			trials.clear();
+			return false;
+		}
+	}
+
+	private static int[] parseLevels(String levels) {
+		String[] parts = levels.split(",");
+		int[] result = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			result[i] = Integer.parseInt(parts[i]);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,89 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds that many threads may record into at once without locking.
+ *
+ * Durations below 16ns get a bucket each; above that every power of two is split into eight buckets, so a
+ * percentile is reported to within 12.5% of the true value. Recording is one atomic increment and an
+ * occasional compare-and-set on the maximum; the work of finding percentiles is left to whoever reads them.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int LINEAR = 2 * SUB_BUCKETS;
+	private static final int BUCKETS = LINEAR + (63 - (SUB_BUCKET_BITS + 1)) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(bucket(nanos));
+
+		long current = max.get();
+		while (nanos > current && !max.compareAndSet(current, nanos)) {
+			current = max.get();
+		}
+	}
+
+	private static int bucket(long nanos) {
+		if (nanos < LINEAR) {
+			return (int) nanos;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR + (magnitude - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + sub;
+	}
+
+	/* The largest duration that falls in a bucket. */
+	private static long upperBound(int bucket) {
+		if (bucket < LINEAR) {
+			return bucket;
+		}
+		int magnitude = (bucket - LINEAR) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+		long sub = (bucket - LINEAR) % SUB_BUCKETS;
+		long width = 1L << (magnitude - SUB_BUCKET_BITS);
+		return (1L << magnitude) + (sub + 1) * width - 1;
+	}
+
+	/* Clears the histogram. Durations recorded at the same time may or may not survive. */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		max.set(0);
+	}
+
+	/* A copy of the counts, with percentiles read from it. Not atomic with respect to concurrent records. */
+	public LatencySummary getSummary() {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		long largest = max.get();
+		return new LatencySummary(total, percentile(snapshot, total, largest, 0.50), percentile(snapshot, total, largest, 0.99), largest);
+	}
+
+	private static long percentile(long[] snapshot, long total, long largest, double p) {
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(p * total);
+		long seen = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(upperBound(i), largest);
+			}
+		}
+		return largest;
+	}
+}
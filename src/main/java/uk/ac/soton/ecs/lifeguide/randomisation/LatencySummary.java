@@ -0,0 +1,29 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import java.beans.ConstructorProperties;
+
+/* The count and percentiles of a LatencyHistogram at one moment, in nanoseconds. */
+public class LatencySummary {
+
+	private final long count;
+	private final long p50;
+	private final long p99;
+	private final long max;
+
+	@ConstructorProperties({"count", "p50", "p99", "max"})
+	public LatencySummary(long count, long p50, long p99, long max) {
+		this.count = count;
+		this.p50 = p50;
+		this.p99 = p99;
+		this.max = max;
+	}
+
+	public long getCount() { return count; }
+	public long getP50() { return p50; }
+	public long getP99() { return p99; }
+	public long getMax() { return max; }
+
+	public String toString() {
+		return "count=" +count +" p50=" +p50 +"ns p99=" +p99 +"ns max=" +max +"ns";
+	}
+}
@@ -11,94 +11,114 @@ public class Minimisation extends Strategy {
 
 	private static final Logger logger = LoggerFactory.getLogger(Minimisation.class);
 
+	/* Per-arm scores, with a separate row for each stratum. */
+	private final double[] scores;
+	private final double[] variableWeights;
+	private final double certainty;
+
+	public static class Provider implements StrategyProvider {
+		public String getName() { return "Minimisation"; }
+
+		public void validate(Trial trial) throws InvalidTrialException {
+			StrategyRegistry.getParameter(trial, "certainty", 0.0, 1.0);
+		}
+
+		public Strategy create(Trial trial, DataManager database) {
+			return new Minimisation(trial, database);
+		}
+	}
+
 	public Minimisation(Trial trial, DataManager database) {
 		super(trial, database);
+
+		scores = new double[compiled.getStrataCount() * compiled.getArmCount()];
+		List<Variable> variables = compiled.getMinimisationVariables();
+		variableWeights = new double[variables.size()];
+		for (int v = 0; v < variableWeights.length; v++) {
+			variableWeights[v] = variables.get(v).getWeight();
+		}
+		// the trial's parameters are written by other strata's commits, so fixed ones are read once here
+		certainty = parameters.get("certainty");
 	}
 
 	@Override
-	protected Arm allocateHelper(Participant participant, String stratifiedEnum, List<Arm> openArms, Map<Arm, Integer> allocations) {
-
-		List<Arm> arms = trial.getArms();
-		Map<Arm, Double> scores = new HashMap<Arm, Double>();
-
-		for (Arm arm: openArms) {
-			scores.put(arm, 0.0);
-
-			for (Variable variable: trial.getVariablesByType("minimisation")) {
-				Double stat = getMinimisationStatistic(stratifiedEnum, arm, variable,participant.getResponse(variable.getName()));
+	public long estimateSize() {
+		return super.estimateSize() + 8L * (scores.length + variableWeights.length);
+	}
 
-				if (stat != null) {
-					scores.put(arm, scores.get(arm) + stat*variable.getWeight());
-				}
-			}
-			scores.put(arm, scores.get(arm)/arm.getWeight());
+	/**
+	 * Scores each open arm by the weighted number of participants already in it who share this participant's
+	 * minimisation levels, relative to the arm's weight. With probability certainty one of the lowest scoring
+	 * arms is chosen, otherwise one of the others; ties are broken uniformly at random.
+	 */
+	@Override
+	protected Arm allocateHelper(Participant participant, int stratum, List<Arm> openArms, int[] allocations) {
+		RandomStream random = getRandom(stratum);
+		int[] levels = participant.getLevels();
+		int row = stratum * compiled.getArmCount();
+		int openCount = openArms.size();
+
+		for (int i = 0; i < openCount; i++) {
+			scores[row + openArms.get(i).getArmOrder()] = 0.0;
 		}
 
-		List<Arm> smallestArms = new ArrayList<Arm>();  //List that stores the index of those scores which have same value
-		smallestArms.add(null); //Add the error return value to the list if there is something wrong happening
-		double min = Double.MAX_VALUE;  //Init min to be the maximum double value
-		
-		for (Arm a: scores.keySet()) {
-			if(scores.get(a) == min) {
-				smallestArms.add(a);
-			} 
-			else if(scores.get(a) < min) {
-				smallestArms.clear();   //New min value, so clear the list of min values
-				smallestArms.add(a);    //Add the new index
-				min = scores.get(a);
+		for (int v = 0; v < variableWeights.length; v++) {
+			int level = compiled.getMinimisationLevel(levels, v);
+			for (int i = 0; i < openCount; i++) {
+				int a = openArms.get(i).getArmOrder();
+				scores[row + a] += counters.getMarginal(stratum, v, level, a) * variableWeights[v];
 			}
 		}
 
-		List<Arm> optionArms;
-		if (random.nextDouble() > parameters.get("certainty")) {
-			optionArms = new ArrayList<Arm>();
-			for (Arm a: scores.keySet()) {
-				if (!smallestArms.contains(a)){
-					optionArms.add(a);
-				}
+		double min = Double.MAX_VALUE;
+		int minCount = 0;
+		for (int i = 0; i < openCount; i++) {
+			Arm arm = openArms.get(i);
+			double score = scores[row + arm.getArmOrder()] / arm.getWeight();
+			scores[row + arm.getArmOrder()] = score;
+
+			if (score == min) {
+				minCount++;
 			}
-			if (optionArms.size() == 0){
-				optionArms = smallestArms;
+			else if (score < min) {
+				min = score;
+				minCount = 1;
 			}
 		}
-		else {
-			optionArms = smallestArms;
-		}
 
-		Arm arm = optionArms.get(new Random().nextInt(optionArms.size()));
-
-		for (Variable variable: trial.getVariablesByType("minimisation")) {
-			incrementMinimisationStatistic(stratifiedEnum, arm, variable, participant.getResponse(variable.getName()));
+		boolean chooseSmallest = true;
+		int optionCount = minCount;
+		if (random.nextDouble() > certainty && minCount < openCount) {
+			chooseSmallest = false;
+			optionCount = openCount - minCount;
 		}
 
+		int choice = random.nextInt(optionCount);
+		Arm arm = null;
+		for (int i = 0; i < openCount; i++) {
+			Arm candidate = openArms.get(i);
+			if ((scores[row + candidate.getArmOrder()] == min) == chooseSmallest && choice-- == 0) {
+				arm = candidate;
+				break;
+			}
+		}
+		// the marginals are counted by recordHelper once the arm is reserved
 		return arm;
 	}
 
-	private String getMiniString(String strataName, Arm arm, Variable variable, String value) {
-		return getStatisticString(
-			strataName,
-			variable.getName() +" " +variable.getStratumNameForValue(value) +" |",
-			arm.getName() +" count"
-			);
-	}
-
-	private void incrementMinimisationStatistic(String strataName, Arm arm, Variable variable, String value) {
-		String name = getMiniString(strataName, arm, variable, value);
-
-		Double currentValue = 0.0;
-		if (parameters.containsKey(name)) {
-			currentValue = parameters.get(name);	
+	@Override
+	protected void addAllocations(CounterStore store, int stratum, int[] levels, Arm arm, int count) {
+		super.addAllocations(store, stratum, levels, arm, count);
+		for (int v = 0; v < variableWeights.length; v++) {
+			store.addMarginal(stratum, v, compiled.getMinimisationLevel(levels, v), arm.getArmOrder(), count);
 		}
-		parameters.put(name,currentValue+1.0);
 	}
 
-	private Double getMinimisationStatistic(String strataName, Arm arm, Variable variable, String value) {
-		String name = getMiniString(strataName, arm, variable, value);
-		if (parameters.containsKey(name)) {
-			return parameters.get(name);	
-		}
-		else {
-			return 0.0;
+	@Override
+	protected void recordHelper(Participant participant, int stratum, Arm arm) {
+		int[] levels = participant.getLevels();
+		for (int v = 0; v < variableWeights.length; v++) {
+			counters.incrementMarginal(stratum, v, compiled.getMinimisationLevel(levels, v), arm.getArmOrder());
 		}
 	}
 }
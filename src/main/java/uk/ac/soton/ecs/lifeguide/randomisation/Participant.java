@@ -6,13 +6,23 @@ import org.json.*;
 
 @Entity
 @Table(name="participants", uniqueConstraints=@UniqueConstraint(columnNames={"trial_id", "identifier"}))
+@NamedQueries({
+	@NamedQuery(name="Participant.byIdentifier", query="from Participant where identifier = :identifier and trial.name = :trialName"),
+	@NamedQuery(name="Participant.exists", query="select count(*) from Participant where trial.id = :trialId and identifier = :identifier"),
+	@NamedQuery(name="Participant.find", query="select p.identifier from Participant p where p.trial.id = :trialId and p.identifier in (:identifiers)"),
+	@NamedQuery(name="Participant.count", query="select count(*) from Participant where trial.id = :trialId"),
+	@NamedQuery(name="Participant.list", query="from Participant p left join fetch p.allocatedArm where p.trial.id = :trialId order by p.id"),
+	@NamedQuery(name="Participant.countByLevels", query="select p.levels, p.allocatedArm.id, count(*) from Participant p where p.trial.id = :trialId and p.levels is not null group by p.levels, p.allocatedArm.id"),
+	@NamedQuery(name="Participant.countByData", query="select p.data, p.allocatedArm.id, count(*) from Participant p where p.trial.id = :trialId and p.levels is null group by p.data, p.allocatedArm.id"),
+	@NamedQuery(name="Participant.export", query="select p.identifier, p.data, p.levels, p.allocatedArm.id from Participant p where p.trial.id = :trialId")
+})
 public class Participant {
 	
 	@Id @GeneratedValue
 	@Column(name="id")
 	private int id;
 
-	@ManyToOne
+	@ManyToOne(fetch=FetchType.LAZY)
 	@JoinColumn(name="trial_id")
 	private Trial trial;
 
@@ -26,6 +36,13 @@ public class Participant {
 	@Column
 	private String data;
 
+	/* Comma separated stratum index of each variable the trial uses, as decoded by CompiledTrial. */
+	@Column(name="levels")
+	private String levels;
+
+	@Transient
+	private int[] levelIndices = null;
+
 	@Transient
 	private JSONObject json = null;
 
@@ -52,5 +69,28 @@ public class Participant {
 	public void setAllocatedArm(Arm allocatedArm) { this.allocatedArm = allocatedArm; }
 
 	public String getData() { return data; }
-	public void setData(String data) { this.data = data; }
+	public void setData(String data) { this.data = data; json = null; levels = null; levelIndices = null; }
+
+	public int[] getLevels() {
+		if (levelIndices == null && levels != null) {
+			String[] parts = levels.length() == 0 ? new String[0] : levels.split(",");
+			levelIndices = new int[parts.length];
+			for (int i = 0; i < parts.length; i++) {
+				levelIndices[i] = Integer.parseInt(parts[i]);
+			}
+		}
+		return levelIndices;
+	}
+
+	public void setLevels(int[] levelIndices) {
+		this.levelIndices = levelIndices;
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < levelIndices.length; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(levelIndices[i]);
+		}
+		levels = sb.toString();
+	}
 }
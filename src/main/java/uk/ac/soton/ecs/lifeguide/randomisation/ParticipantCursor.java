@@ -0,0 +1,24 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import uk.ac.soton.ecs.lifeguide.randomisation.exception.*;
+
+/**
+ * A forward-only pass over a trial's participants as they are stored, in no particular order. Only the
+ * current participant is held, so a trial of any size can be read; the cursor keeps its database
+ * resources until it is closed.
+ */
+public interface ParticipantCursor {
+
+	/* Moves to the next participant, returning false after the last. */
+	public boolean next() throws PersistenceException;
+
+	public String getIdentifier();
+	public String getData();
+
+	/* The participant's levels as stored, or null if it was stored before levels were kept. */
+	public String getLevels();
+
+	public Arm getArm();
+
+	public void close();
+}
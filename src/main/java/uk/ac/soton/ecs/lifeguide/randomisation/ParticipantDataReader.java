@@ -0,0 +1,261 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import uk.ac.soton.ecs.lifeguide.randomisation.exception.InvalidUserDataException;
+
+/**
+ * Single pass reader for the flat JSON object held in Participant.data. Only the values of the
+ * requested keys are extracted; every other key and value is skipped in place without being copied.
+ *
+ * Like org.json, single or double quoted strings, unquoted keys and bare values such as numbers are
+ * accepted. Nested objects and arrays are skipped, and read as missing if one of the requested keys
+ * holds them. Readers are immutable and may be shared between threads.
+ */
+public class ParticipantDataReader {
+
+	private final String[] keys;
+	private final int[] hashes;
+
+	public ParticipantDataReader(String[] keys) {
+		this.keys = keys.clone();
+		hashes = new int[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			hashes[i] = keys[i].hashCode();
+		}
+	}
+
+	/**
+	 * Returns the values of the requested keys, in the order they were given to the constructor, with null
+	 * for any key that is absent.
+	 */
+	public String[] read(String data) throws InvalidUserDataException {
+		String[] values = new String[keys.length];
+		if (data != null) {
+			new Scan(data).readObject(values);
+		}
+		return values;
+	}
+
+	private static boolean isDelimiter(char c) {
+		return c == ',' || c == '}' || c == ']' || c == ';' || Character.isWhitespace(c);
+	}
+
+	/* The position within one piece of data being read. */
+	private class Scan {
+
+		private final String data;
+		private int pos = 0;
+
+		public Scan(String data) {
+			this.data = data;
+		}
+
+		public void readObject(String[] values) throws InvalidUserDataException {
+			skipWhitespace();
+			expect('{');
+			skipWhitespace();
+			if (peek() == '}') {
+				return;
+			}
+
+			while (true) {
+				skipWhitespace();
+				int key = readKey();
+
+				skipWhitespace();
+				expect(':');
+				skipWhitespace();
+
+				if (key >= 0) {
+					values[key] = readValue();
+				}
+				else {
+					skipValue();
+				}
+
+				skipWhitespace();
+				char c = next();
+				if (c == '}') {
+					return;
+				}
+				if (c != ',' && c != ';') {
+					throw error("Expected , or }");
+				}
+			}
+		}
+
+		/* Returns the index of the key just read, or -1 if it was not requested. */
+		private int readKey() throws InvalidUserDataException {
+			char c = peek();
+			int start;
+			int end;
+			boolean escaped = false;
+
+			if (c == '"' || c == '\'') {
+				pos++;
+				start = pos;
+				escaped = skipQuoted(c);
+				end = pos - 1;
+			}
+			else {
+				start = pos;
+				while (pos < data.length() && !isDelimiter(data.charAt(pos)) && data.charAt(pos) != ':') {
+					pos++;
+				}
+				end = pos;
+				if (start == end) {
+					throw error("Expected a key");
+				}
+			}
+
+			if (escaped) {
+				String key = unescape(start, end);
+				for (int i = 0; i < keys.length; i++) {
+					if (keys[i].equals(key)) {
+						return i;
+					}
+				}
+				return -1;
+			}
+
+			int hash = 0;
+			for (int i = start; i < end; i++) {
+				hash = 31 * hash + data.charAt(i);
+			}
+			for (int i = 0; i < keys.length; i++) {
+				if (hashes[i] == hash && keys[i].length() == end - start && data.regionMatches(start, keys[i], 0, end - start)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private String readValue() throws InvalidUserDataException {
+			char c = peek();
+			if (c == '"' || c == '\'') {
+				pos++;
+				int start = pos;
+				boolean escaped = skipQuoted(c);
+				return escaped ? unescape(start, pos - 1) : data.substring(start, pos - 1);
+			}
+			if (c == '{' || c == '[') {
+				skipValue();
+				return null;
+			}
+
+			int start = pos;
+			skipBareValue();
+			String value = data.substring(start, pos);
+			return value.equals("null") ? null : value;
+		}
+
+		private void skipValue() throws InvalidUserDataException {
+			char c = peek();
+			if (c == '"' || c == '\'') {
+				pos++;
+				skipQuoted(c);
+			}
+			else if (c == '{' || c == '[') {
+				int depth = 0;
+				do {
+					char d = next();
+					if (d == '"' || d == '\'') {
+						skipQuoted(d);
+					}
+					else if (d == '{' || d == '[') {
+						depth++;
+					}
+					else if (d == '}' || d == ']') {
+						depth--;
+					}
+				} while (depth > 0);
+			}
+			else {
+				skipBareValue();
+			}
+		}
+
+		/* Moves past the closing quote, returning whether any escapes were seen. */
+		private boolean skipQuoted(char quote) throws InvalidUserDataException {
+			boolean escaped = false;
+			while (true) {
+				char d = next();
+				if (d == quote) {
+					return escaped;
+				}
+				if (d == '\\') {
+					escaped = true;
+					next();
+				}
+			}
+		}
+
+		private void skipBareValue() throws InvalidUserDataException {
+			int start = pos;
+			while (pos < data.length() && !isDelimiter(data.charAt(pos))) {
+				pos++;
+			}
+			if (start == pos) {
+				throw error("Expected a value");
+			}
+		}
+
+		private String unescape(int start, int end) throws InvalidUserDataException {
+			StringBuilder sb = new StringBuilder(end - start);
+			for (int i = start; i < end; i++) {
+				char c = data.charAt(i);
+				if (c != '\\') {
+					sb.append(c);
+					continue;
+				}
+				c = data.charAt(++i);
+				switch (c) {
+					case 'b': sb.append('\b'); break;
+					case 't': sb.append('\t'); break;
+					case 'n': sb.append('\n'); break;
+					case 'f': sb.append('\f'); break;
+					case 'r': sb.append('\r'); break;
+					case 'u':
+						try {
+							sb.append((char) Integer.parseInt(data.substring(i + 1, i + 5), 16));
+						}
+						catch (RuntimeException e) {
+							throw error("Bad unicode escape");
+						}
+						i += 4;
+						break;
+					default: sb.append(c);
+				}
+			}
+			return sb.toString();
+		}
+
+		private void skipWhitespace() {
+			while (pos < data.length() && Character.isWhitespace(data.charAt(pos))) {
+				pos++;
+			}
+		}
+
+		private char peek() throws InvalidUserDataException {
+			if (pos >= data.length()) {
+				throw error("Unexpected end of data");
+			}
+			return data.charAt(pos);
+		}
+
+		private char next() throws InvalidUserDataException {
+			char c = peek();
+			pos++;
+			return c;
+		}
+
+		private void expect(char c) throws InvalidUserDataException {
+			if (next() != c) {
+				throw error("Expected " +c);
+			}
+		}
+
+		private InvalidUserDataException error(String message) {
+			return new InvalidUserDataException(message +" at character " +pos +".", data);
+		}
+	}
+}
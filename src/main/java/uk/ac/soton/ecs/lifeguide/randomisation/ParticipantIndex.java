@@ -0,0 +1,64 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import uk.ac.soton.ecs.lifeguide.randomisation.exception.*;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The arm order each participant of a loaded trial was allocated to, by identifier, so the server can
+ * reject duplicates and answer get_allocation without a database query. It is filled from the database
+ * the first time the server needs it, after the trial is in the cache, and kept up to date as the server
+ * allocates, which holds while the server is the only process allocating to the trial; the participants
+ * table's unique key still stops a duplicate added by another process.
+ */
+public class ParticipantIndex {
+
+	/* Heap per participant besides the identifier's characters: map node, table slot and String. */
+	private static final long ENTRY_BYTES = 96;
+
+	private final ConcurrentHashMap<String, Integer> arms = new ConcurrentHashMap<String, Integer>();
+	private final AtomicLong bytes = new AtomicLong();
+
+	/* Reads every participant of the trial through a cursor, so only the index itself is held. */
+	public static ParticipantIndex load(DataManager database, Trial trial) throws PersistenceException {
+		ParticipantIndex index = new ParticipantIndex();
+		ParticipantCursor cursor = database.exportParticipants(trial);
+		try {
+			while (cursor.next()) {
+				if (cursor.getArm() != null) {
+					index.put(cursor.getIdentifier(), cursor.getArm());
+				}
+			}
+		}
+		finally {
+			cursor.close();
+		}
+		return index;
+	}
+
+	public void put(String identifier, Arm arm) {
+		// arm orders are small, so valueOf shares one Integer between participants
+		if (arms.put(identifier, Integer.valueOf(arm.getArmOrder())) == null) {
+			bytes.addAndGet(ENTRY_BYTES + 2L * identifier.length());
+		}
+	}
+
+	public boolean contains(String identifier) {
+		return arms.containsKey(identifier);
+	}
+
+	/* The arm order the participant was allocated to, or -1 if the trial does not have them. */
+	public int getArmOrder(String identifier) {
+		Integer order = arms.get(identifier);
+		return order == null ? -1 : order;
+	}
+
+	public int size() {
+		return arms.size();
+	}
+
+	public long estimateSize() {
+		return bytes.get();
+	}
+}
@@ -0,0 +1,27 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+/**
+ * A seedable source of random numbers whose whole state is its seed and the number of values drawn, so a
+ * sequence can be resumed or replayed exactly from those two numbers. Streams split into independent child
+ * streams, one per stratum or per simulation run, which can be used from different threads without sharing
+ * any state. A single stream is not thread safe.
+ */
+public interface RandomStream {
+
+	public long nextLong();
+
+	/* Uniform in [0, bound). */
+	public int nextInt(int bound);
+
+	/* Uniform in [0, 1). */
+	public double nextDouble();
+
+	/* The number of values drawn so far. */
+	public long getPosition();
+
+	/* Moves to a position, so the next value drawn is the one that followed that many draws. */
+	public void setPosition(long position);
+
+	/* An independent stream determined by this stream's seed and index, starting at position 0. */
+	public RandomStream split(long index);
+}
@@ -10,11 +10,23 @@ public class SimpleRandomisation extends Strategy {
 
 	private static final Logger logger = LoggerFactory.getLogger(SimpleRandomisation.class);
 
+	public static class Provider implements StrategyProvider {
+		public String getName() { return "SimpleRandomisation"; }
+
+		public void validate(Trial trial) {
+		}
+
+		public Strategy create(Trial trial, DataManager database) {
+			return new SimpleRandomisation(trial, database);
+		}
+	}
+
 	public SimpleRandomisation(Trial trial, DataManager database) {
 		super(trial, database);
 	}
 
-	protected Arm allocateHelper(Participant participant, String stratifiedEnum, List<Arm> openArms, Map<Arm, Integer> allocations) {
+	protected Arm allocateHelper(Participant participant, int stratum, List<Arm> openArms, int[] allocations) {
+		RandomStream random = getRandom(stratum);
 		int openArmsWeightSum = 0;
 		for (Arm openArm: openArms) {
 			openArmsWeightSum += openArm.getWeight();
@@ -0,0 +1,446 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import uk.ac.soton.ecs.lifeguide.randomisation.exception.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.json.*;
+
+/**
+ * Runs a trial design many times over in memory, with made-up participants, to show how balanced and how
+ * predictable its allocations would be before it is registered. Nothing is written to a database.
+ *
+ * Participants' responses are drawn from a covariate distribution, a JSON object giving one entry for each
+ * variable the trial stratifies or minimises on:
+ *
+ *   { "weight": { "min": 20, "max": 150 },               uniform
+ *     "height": { "mean": 100, "sd": 25 },               normal
+ *     "isAlpaca": { "values": { "yes": 1, "no": 3 } } }  categorical, with relative weights
+ *
+ * Each replicate is a fresh trial with its own seed and its own participants, both taken from a
+ * RandomStream split from the simulation's seed by replicate number, so results do not depend on the
+ * number of threads or the order replicates finish in.
+ *
+ * For every replicate the simulator records:
+ *   imbalance - the largest difference between an arm's allocations and its weighted share, over the whole
+ *     trial, within the worst stratum, and within the worst level of any variable;
+ *   cap hits - participants allocated while at least one arm was at its trial-wide limit, and those
+ *     given the default arm because every arm was;
+ *   correct guesses - the proportion of allocations a recruiter would have guessed by always naming the
+ *     arm furthest behind its share in the participant's stratum, sharing credit between tied arms, and
+ *     the proportion the same guesses would get right against simple randomisation.
+ */
+public class Simulator {
+
+	/* Draws one variable's response for a simulated participant, as the index of the level it falls in. */
+	private interface Covariate {
+		int draw(RandomStream random);
+	}
+
+	private final String definition;
+	private final CompiledTrial compiled;
+	private final Covariate[] covariates;
+
+	public Simulator(String definition, JSONObject distribution) throws InvalidTrialException, InvalidUserDataException {
+		this.definition = definition;
+		Trial trial = TrialLoader.parseTrial(definition);
+		StrategyRegistry.validate(trial);
+		compiled = trial.getCompiled();
+
+		List<Variable> variables = compiled.getVariables();
+		covariates = new Covariate[variables.size()];
+		for (int v = 0; v < covariates.length; v++) {
+			Variable variable = variables.get(v);
+			if (!distribution.has(variable.getName())) {
+				throw new InvalidUserDataException("No distribution given for " +variable.getName() +".", variable.getName());
+			}
+			covariates[v] = parseCovariate(variable, distribution.getJSONObject(variable.getName()));
+		}
+	}
+
+	private static Covariate parseCovariate(Variable variable, JSONObject json) throws InvalidUserDataException {
+		String name = variable.getName();
+		if (json.has("values")) {
+			JSONObject values = json.getJSONObject("values");
+			String[] names = JSONObject.getNames(values);
+			if (names == null) {
+				throw new InvalidUserDataException("No values given for " +name +".", name);
+			}
+			final int[] levels = new int[names.length];
+			final double[] cumulative = new double[names.length];
+			double total = 0.0;
+			for (int i = 0; i < names.length; i++) {
+				levels[i] = variable.getStratumIndex(names[i]);
+				double weight = values.getDouble(names[i]);
+				if (weight < 0.0) {
+					throw new InvalidUserDataException("Value " +names[i] +" of " +name +" has a negative weight.", name);
+				}
+				total += weight;
+				cumulative[i] = total;
+			}
+			if (total <= 0.0) {
+				throw new InvalidUserDataException("The values of " +name +" need a positive total weight.", name);
+			}
+			final double sum = total;
+			return new Covariate() {
+				public int draw(RandomStream random) {
+					double u = random.nextDouble() * sum;
+					int i = 0;
+					while (i < levels.length - 1 && u >= cumulative[i]) {
+						i++;
+					}
+					return levels[i];
+				}
+			};
+		}
+
+		final NumericLevels levels = new NumericLevels(variable);
+		if (json.has("mean")) {
+			final double mean = json.getDouble("mean");
+			final double sd = json.getDouble("sd");
+			return new Covariate() {
+				public int draw(RandomStream random) {
+					// Box-Muller, using one of the pair
+					double u = 1.0 - random.nextDouble();
+					double gaussian = Math.sqrt(-2.0 * Math.log(u)) * Math.cos(2.0 * Math.PI * random.nextDouble());
+					return levels.indexOf(mean + sd * gaussian);
+				}
+			};
+		}
+		else if (json.has("min") && json.has("max")) {
+			final double min = json.getDouble("min");
+			final double max = json.getDouble("max");
+			return new Covariate() {
+				public int draw(RandomStream random) {
+					return levels.indexOf(min + (max - min) * random.nextDouble());
+				}
+			};
+		}
+		throw new InvalidUserDataException("The distribution of " +name +" needs values, a mean and sd, or a min and max.", name);
+	}
+
+	/* Finds the level a drawn number falls in without going through its text, where the levels are ranges. */
+	private static class NumericLevels {
+		private final Variable variable;
+		private final double[] minimums;
+		private final double[] maximums;
+
+		NumericLevels(Variable variable) {
+			this.variable = variable;
+			List<Stratum> strata = variable.getStrata();
+			boolean ranges = true;
+			for (Stratum s : strata) {
+				ranges &= s instanceof RangeStratum;
+			}
+			if (ranges) {
+				minimums = new double[strata.size()];
+				maximums = new double[strata.size()];
+				for (int i = 0; i < minimums.length; i++) {
+					minimums[i] = ((RangeStratum) strata.get(i)).getMinimum();
+					maximums[i] = ((RangeStratum) strata.get(i)).getMaximum();
+				}
+			}
+			else {
+				minimums = null;
+				maximums = null;
+			}
+		}
+
+		/* The level of value, or StratumLookup.NO_STRATUM. */
+		int indexOf(double value) {
+			if (minimums == null) {
+				return variable.getStratumIndexForValue(Double.toString(value));
+			}
+			for (int i = 0; i < minimums.length; i++) {
+				if (value >= minimums[i] && value < maximums[i]) {
+					return i;
+				}
+			}
+			return StratumLookup.NO_STRATUM;
+		}
+	}
+
+	/**
+	 * Runs replicates trials of participants participants each on up to threads threads, and returns a
+	 * summary of each measure's distribution across replicates. Each count must be at least 1.
+	 */
+	public JSONObject run(final int participants, int replicates, int threads, long seed) throws InvalidTrialException, AllocationException {
+		if (participants < 1) {
+			throw new IllegalArgumentException("A simulation needs at least 1 participant, not " +participants +".");
+		}
+		if (replicates < 1) {
+			throw new IllegalArgumentException("A simulation needs at least 1 replicate, not " +replicates +".");
+		}
+		if (threads < 1) {
+			throw new IllegalArgumentException("A simulation needs at least 1 thread, not " +threads +".");
+		}
+		long start = System.currentTimeMillis();
+		final RandomStream root = new SplitMixStream(seed);
+		final Result[] results = new Result[replicates];
+
+		// one task per thread, each taking the next replicate as it finishes the last
+		final int total = replicates;
+		final AtomicInteger next = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>(threads);
+			for (int t = 0; t < threads; t++) {
+				futures.add(executor.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						int r;
+						while ((r = next.getAndIncrement()) < total) {
+							results[r] = replicate(root.split(r), participants);
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> f : futures) {
+				f.get();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AllocationException("Interrupted while simulating", e);
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof InvalidTrialException) {
+				throw (InvalidTrialException) cause;
+			}
+			if (cause instanceof AllocationException) {
+				throw (AllocationException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new AllocationException("Simulation failed: " +cause.getMessage(), (Exception) cause);
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		double[] overall = new double[replicates];
+		double[] stratum = new double[replicates];
+		double[] marginal = new double[replicates];
+		double[] capHits = new double[replicates];
+		double[] turnedAway = new double[replicates];
+		double[] correct = new double[replicates];
+		double[] chance = new double[replicates];
+		for (int r = 0; r < replicates; r++) {
+			overall[r] = results[r].overall;
+			stratum[r] = results[r].stratum;
+			marginal[r] = results[r].marginal;
+			capHits[r] = results[r].capHits;
+			turnedAway[r] = results[r].turnedAway;
+			correct[r] = results[r].correct;
+			chance[r] = results[r].chance;
+		}
+
+		JSONObject imbalance = new JSONObject();
+		imbalance.put("overall", summarise(overall));
+		imbalance.put("stratum", summarise(stratum));
+		imbalance.put("marginal", summarise(marginal));
+
+		JSONObject json = new JSONObject();
+		json.put("method", compiled.getTrial().getStrategy());
+		json.put("participants", participants);
+		json.put("replicates", replicates);
+		json.put("seed", seed);
+		json.put("imbalance", imbalance);
+		json.put("cap_hits", summarise(capHits));
+		json.put("turned_away", summarise(turnedAway));
+		json.put("correct_guess", summarise(correct));
+		json.put("correct_guess_by_chance", summarise(chance));
+		json.put("milliseconds", System.currentTimeMillis() - start);
+		return json;
+	}
+
+	/* What one replicate measured. */
+	private static class Result {
+		double overall;
+		double stratum;
+		double marginal;
+		int capHits;
+		int turnedAway;
+		double correct;
+		double chance;
+	}
+
+	private Result replicate(RandomStream random, int participants) throws InvalidTrialException, AllocationException, PersistenceException {
+		Trial trial = TrialLoader.parseTrial(definition);
+		trial.setName("simulation");
+		trial.getParameters().put(Strategy.SEED_PARAMETER, (double) (random.nextLong() & ((1L << 52) - 1)));
+		Strategy strategy = StrategyRegistry.create(trial, new DiscardingDataManager());
+		strategy.disableMetrics();
+		CompiledTrial compiled = trial.getCompiled();
+
+		int arms = compiled.getArmCount();
+		List<Variable> variables = compiled.getVariables();
+		int[][][] levelCounts = new int[variables.size()][][];
+		for (int v = 0; v < levelCounts.length; v++) {
+			levelCounts[v] = new int[variables.get(v).getStrata().size()][arms];
+		}
+		int[][] strataCounts = new int[compiled.getStrataCount()][arms];
+		int[] counts = new int[arms];
+
+		Result result = new Result();
+		int allocated = 0;
+		double guessed = 0.0;
+		double chance = 0.0;
+
+		for (int i = 0; i < participants; i++) {
+			int[] levels = new int[covariates.length];
+			for (int v = 0; v < levels.length; v++) {
+				levels[v] = covariates[v].draw(random);
+				if (levels[v] == StratumLookup.NO_STRATUM) {
+					throw new AllocationException("The distribution of " +variables.get(v).getName() +" gave a value that fits none of its strata.");
+				}
+			}
+			Participant participant = new Participant();
+			participant.setIdentifier(Integer.toString(i));
+			participant.setLevels(levels);
+			int s = compiled.getStratumId(levels);
+
+			// the recruiter's guess: the open arms furthest behind their share of the stratum
+			double lowest = Double.MAX_VALUE;
+			boolean full = false;
+			boolean[] guesses = new boolean[arms];
+			int guessCount = 0;
+			int openWeight = 0;
+			for (int a = 0; a < arms; a++) {
+				if (counts[a] >= compiled.getArmLimit(a)) {
+					full = true;
+					continue;
+				}
+				openWeight += compiled.getArmWeight(a);
+				double share = strataCounts[s][a] / (double) compiled.getArmWeight(a);
+				if (share < lowest) {
+					lowest = share;
+					Arrays.fill(guesses, false);
+					guessCount = 0;
+				}
+				if (share == lowest) {
+					guesses[a] = true;
+					guessCount++;
+				}
+			}
+			if (guessCount == 0) {
+				result.turnedAway++;
+				strategy.allocate(participant);
+				continue;
+			}
+			if (full) {
+				result.capHits++;
+			}
+
+			// how often the same guess would be right if the open arms were drawn by weight alone
+			for (int a = 0; a < arms; a++) {
+				if (guesses[a]) {
+					chance += compiled.getArmWeight(a) / (double) openWeight / guessCount;
+				}
+			}
+
+			int a = strategy.allocate(participant).getArmOrder();
+			if (guesses[a]) {
+				guessed += 1.0 / guessCount;
+			}
+			allocated++;
+			counts[a]++;
+			strataCounts[s][a]++;
+			for (int v = 0; v < levels.length; v++) {
+				levelCounts[v][levels[v]][a]++;
+			}
+		}
+
+		result.overall = imbalance(compiled, counts);
+		for (int[] c : strataCounts) {
+			result.stratum = Math.max(result.stratum, imbalance(compiled, c));
+		}
+		for (int[][] variable : levelCounts) {
+			for (int[] c : variable) {
+				result.marginal = Math.max(result.marginal, imbalance(compiled, c));
+			}
+		}
+		result.correct = allocated == 0 ? 0.0 : guessed / allocated;
+		result.chance = allocated == 0 ? 0.0 : chance / allocated;
+		return result;
+	}
+
+	/* The largest difference between an arm's count and its weighted share of the total. */
+	private static double imbalance(CompiledTrial compiled, int[] counts) {
+		int total = 0;
+		for (int c : counts) {
+			total += c;
+		}
+		double worst = 0.0;
+		for (int a = 0; a < counts.length; a++) {
+			double expected = total * compiled.getArmWeight(a) / (double) compiled.getTotalWeight();
+			worst = Math.max(worst, Math.abs(counts[a] - expected));
+		}
+		return worst;
+	}
+
+	private static JSONObject summarise(double[] values) {
+		double[] sorted = values.clone();
+		Arrays.sort(sorted);
+		double sum = 0.0;
+		for (double v : sorted) {
+			sum += v;
+		}
+		double mean = sum / sorted.length;
+		double squares = 0.0;
+		for (double v : sorted) {
+			squares += (v - mean) * (v - mean);
+		}
+
+		JSONObject json = new JSONObject();
+		json.put("mean", mean);
+		json.put("sd", sorted.length > 1 ? Math.sqrt(squares / (sorted.length - 1)) : 0.0);
+		json.put("min", sorted[0]);
+		json.put("p50", percentile(sorted, 0.50));
+		json.put("p90", percentile(sorted, 0.90));
+		json.put("p95", percentile(sorted, 0.95));
+		json.put("p99", percentile(sorted, 0.99));
+		json.put("max", sorted[sorted.length - 1]);
+		return json;
+	}
+
+	private static double percentile(double[] sorted, double p) {
+		return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+	}
+
+	/* Simulated allocations are only kept in the strategy's counters. */
+	private static class DiscardingDataManager implements DataManager {
+		public void connect() {}
+		public void disconnect() {}
+		public Trial getTrial(String name) { return null; }
+		public void registerTrial(Trial trial) {}
+		public Participant getParticipant(String trialName, String identifier) { return null; }
+		public boolean participantExists(Trial trial, String identifier) { return false; }
+		public Set<String> findParticipants(Trial trial, Collection<String> identifiers) { return Collections.emptySet(); }
+		public long countParticipants(Trial trial) { return 0; }
+		public List<Participant> listParticipants(Trial trial, int first, int max) { return Collections.emptyList(); }
+		public List<AllocationCount> countAllocations(Trial trial) { return Collections.emptyList(); }
+		public ParticipantCursor exportParticipants(Trial trial) {
+			return new ParticipantCursor() {
+				public boolean next() { return false; }
+				public String getIdentifier() { return null; }
+				public String getData() { return null; }
+				public String getLevels() { return null; }
+				public Arm getArm() { return null; }
+				public void close() {}
+			};
+		}
+		public void writeCounters(Trial trial, Map<String, Double> counters) {}
+		public boolean update(Trial trial, Participant participant, Arm arm, Map<String, Double> counters) { return true; }
+		public void beginBatch() {}
+		public void commitBatch() {}
+		public void rollbackBatch() {}
+		public void beginImport(Trial trial) {}
+		public void importParticipants(Trial trial, List<Participant> participants) {}
+		public void commitImport(Trial trial, Map<String, Double> counters) {}
+		public void rollbackImport() {}
+	}
+}
@@ -0,0 +1,66 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+/**
+ * The default RandomStream. Value i of a stream is the SplitMix64 finaliser applied to seed + i * gamma,
+ * so any position can be reached in constant time. Child streams take their seed from the finaliser
+ * applied to the parent's seed and the child's index.
+ */
+public class SplitMixStream implements RandomStream {
+
+	private static final long GAMMA = 0x9E3779B97F4A7C15L;
+
+	private final long seed;
+	private long position;
+
+	public SplitMixStream(long seed) {
+		this(seed, 0);
+	}
+
+	public SplitMixStream(long seed, long position) {
+		this.seed = seed;
+		this.position = position;
+	}
+
+	public long nextLong() {
+		return mix(seed + (++position) * GAMMA);
+	}
+
+	/* Rejects the few values that would make the result biased towards small numbers. */
+	public int nextInt(int bound) {
+		if (bound <= 0) {
+			throw new IllegalArgumentException("bound must be positive");
+		}
+		long limit = Long.MAX_VALUE - (Long.MAX_VALUE % bound);
+		long value;
+		do {
+			value = nextLong() >>> 1;
+		} while (value >= limit);
+		return (int) (value % bound);
+	}
+
+	public double nextDouble() {
+		return (nextLong() >>> 11) * 0x1.0p-53;
+	}
+
+	public long getPosition() {
+		return position;
+	}
+
+	public void setPosition(long position) {
+		this.position = position;
+	}
+
+	public RandomStream split(long index) {
+		return new SplitMixStream(mix(seed ^ mix(index * GAMMA + GAMMA)));
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -6,88 +6,326 @@ import org.slf4j.LoggerFactory;
 
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public abstract class Strategy {
 
 	private static final Logger logger = LoggerFactory.getLogger(Strategy.class);
 
-	private static final String STRATEGY_CLASS_PACKAGE = "uk.ac.soton.ecs.lifeguide.randomisation.";
+	private static final int MAX_LOCK_STRIPES = 64;
 
-	public static Strategy create(Trial trial, DataManager database) throws InvalidTrialException {
-		try {
-			// Attempt to load the named class. Use casting/not-found exceptions to detect failure.
-			String className = STRATEGY_CLASS_PACKAGE + trial.getStrategy();
+	/* The trial parameter holding the seed every stratum's random stream is split from. */
+	public static final String SEED_PARAMETER = "random seed";
 
-			return Class.forName(className).asSubclass(Strategy.class).getConstructor(Trial.class, DataManager.class).newInstance(trial, database);
-		}
-		catch (Exception e) {
-			throw new InvalidTrialException("Allocation method not found: " + trial.getStrategy() + ".");
-		}
+	/* Builds a new strategy for the trial's method. Prefer Trial.getAllocator, which keeps one per loaded trial. */
+	public static Strategy create(Trial trial, DataManager database) throws InvalidTrialException {
+		return StrategyRegistry.create(trial, database);
 	}
 
-	protected Random random = new Random();
 	protected final Trial trial;
+	protected final CompiledTrial compiled;
 	protected final DataManager database;
 	protected final Map<String, Double> parameters;
+	protected final CounterStore counters;
+
+	private final Lock[] locks;
+	private AllocationJournal journal;
+
+	/* Participants in each arm across every stratum, by arm order, for enforcing arm limits trial-wide. */
+	private final AtomicIntegerArray armTotals;
+
+	private final long seed;
+	private final RandomStream root;
+	private final RandomStream[] streams;
+	private volatile boolean seedUnsaved;
+
+	/* Looked up on the first allocation, so a strategy whose metrics are disabled before then registers none. */
+	private volatile boolean metricsEnabled;
+	private volatile AllocationMetrics trialMetrics;
+	private volatile AllocationMetrics strategyMetrics;
 
 	public Strategy(Trial trial, DataManager database){
 		this.trial = trial;
+		this.compiled = trial.getCompiled();
 		this.database = database;
 		this.parameters = trial.getParameters();
+		this.counters = CounterStore.forTrial(compiled);
+
+		locks = new Lock[Math.max(1, Math.min(compiled.getStrataCount(), MAX_LOCK_STRIPES))];
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new ReentrantLock();
+		}
+
+		armTotals = new AtomicIntegerArray(compiled.getArmCount());
+		for (int s = 0; s < compiled.getStrataCount(); s++) {
+			for (int a = 0; a < compiled.getArmCount(); a++) {
+				armTotals.addAndGet(a, counters.getAllocations(s, a));
+			}
+		}
+
+		// trials registered before seeds were kept get one now, saved with their next allocation
+		Double storedSeed = parameters.get(SEED_PARAMETER);
+		if (storedSeed != null) {
+			seed = storedSeed.longValue();
+		}
+		else {
+			seed = newSeed();
+			seedUnsaved = true;
+		}
+		root = newStream(seed);
+		streams = new RandomStream[compiled.getStrataCount()];
+
+		metricsEnabled = trial.getName() != null;
 	}
 
-	protected Arm allocate(Participant participant) throws PersistenceException {
-		String stratifiedEnum = trial.getStrata(participant);
+	/* A random seed that a trial parameter holds exactly. */
+	public static long newSeed() {
+		return new java.security.SecureRandom().nextLong() & ((1L << 52) - 1);
+	}
+
+	/* The generator used for every random stream of this strategy. Override to plug in another. */
+	protected RandomStream newStream(long seed) {
+		return new SplitMixStream(seed);
+	}
+
+	/**
+	 * The stratum's own random stream, resumed from the position recorded in its counters. Only use it with
+	 * the stratum's lock held.
+	 */
+	protected RandomStream getRandom(int stratum) {
+		RandomStream stream = streams[stratum];
+		if (stream == null) {
+			stream = root.split(stratum);
+			stream.setPosition(counters.getRandomDraws(stratum));
+			streams[stratum] = stream;
+		}
+		return stream;
+	}
+
+	/**
+	 * Allocates a participant and commits the result. Allocations are safe to make from several threads at
+	 * once: all of a strategy's state belongs to a single stratum, so reading the counters, choosing an arm
+	 * and recording it happen under that stratum's lock. Strata choose their arms independently, but the
+	 * commit is made under the lock too, and the trial's DataManager or journal serialises commits, so
+	 * allocations in different strata still wait for each other's database writes.
+	 *
+	 * Arm limits apply to the whole trial. A place in the chosen arm is reserved from a trial-wide count
+	 * before the allocation is recorded; if another stratum has just taken the arm's last place the choice
+	 * is made again, and if the commit fails the place is given back. Only a reserved choice is applied to
+	 * the counters, so a choice made again leaves nothing behind.
+	 *
+	 * If the commit fails the in-memory counters are ahead of the database and the strategy should be discarded.
+	 * Once committed the participant's allocated arm is set; a participant given the default arm because the
+	 * trial is full is not committed and is left without one.
+	 */
+	protected Arm allocate(Participant participant) throws AllocationException, PersistenceException {
+		long start = System.nanoTime();
+		int stratum = compiled.getStratumId(participant);
+		long stratified = System.nanoTime();
+
+		Lock lock = getLock(stratum);
+		lock.lock();
+		try {
+			long locked = System.nanoTime();
+			Arm arm;
+			do {
+				int[] allocations = new int[compiled.getArmCount()];
+				List<Arm> openArms = new ArrayList<Arm>();
 
-		Map<Arm, Integer> allocations = new HashMap<Arm, Integer>();
-		List<Arm> openArms = new ArrayList<Arm>();
-	
-		for (Arm a : trial.getArms()) {
-			Double strategyStatistic = getStatistic(stratifiedEnum, a.getName(), "allocations");
-			int roundedVal = (int)(Math.round(strategyStatistic));
-			
-			if (roundedVal < a.getMaxParticipants()) {
-				openArms.add(a);
+				for (int a = 0; a < allocations.length; a++) {
+					allocations[a] = armTotals.get(a);
+
+					if (allocations[a] < compiled.getArmLimit(a)) {
+						openArms.add(compiled.getArm(a));
+					}
+				}
+
+				if (openArms.isEmpty()) {
+					logger.debug("Trial full.");
+					if (recordsMetrics()) {
+						trialMetrics.recordTrialFull();
+						strategyMetrics.recordTrialFull();
+					}
+					return trial.getDefaultArm();
+				}
+
+				arm = allocateHelper(participant, stratum, openArms, allocations);
+			} while (!reserve(arm.getArmOrder()));
+			acceptHelper(participant, stratum, arm);
+			counters.incrementAllocations(stratum, arm.getArmOrder());
+			if (streams[stratum] != null && streams[stratum].getPosition() != counters.getRandomDraws(stratum)) {
+				counters.setRandomDraws(stratum, streams[stratum].getPosition());
+			}
+			long chosen = System.nanoTime();
+
+			try {
+				commit(stratum, participant, arm);
 			}
-			allocations.put(a, roundedVal);
+			catch (PersistenceException e) {
+				armTotals.decrementAndGet(arm.getArmOrder());
+				if (recordsMetrics()) {
+					trialMetrics.recordPersistenceFailure();
+					strategyMetrics.recordPersistenceFailure();
+				}
+				throw e;
+			}
+			participant.setAllocatedArm(arm);
+
+			if (recordsMetrics()) {
+				long committed = System.nanoTime();
+				trialMetrics.recordAllocation(stratified - start, chosen - locked, committed - chosen, committed - start);
+				strategyMetrics.recordAllocation(stratified - start, chosen - locked, committed - chosen, committed - start);
+			}
+			return arm;
+		}
+		finally {
+			lock.unlock();
 		}
+	}
+
+	/**
+	 * Counts an allocation decided elsewhere, such as by a system the trial was migrated from, as though this
+	 * strategy had made it, and returns the participant's stratum id. Nothing is committed; once the
+	 * participants are stored, writeCounters() gives the counters to store with them.
+	 */
+	public int recordAllocation(Participant participant, Arm arm) throws AllocationException {
+		int stratum = compiled.getStratumId(participant);
 
-		if (openArms.isEmpty()) {
-			logger.debug("Trial full.");
-			return trial.getDefaultArm();
+		Lock lock = getLock(stratum);
+		lock.lock();
+		try {
+			counters.incrementAllocations(stratum, arm.getArmOrder());
+			armTotals.incrementAndGet(arm.getArmOrder());
+			recordHelper(participant, stratum, arm);
 		}
+		finally {
+			lock.unlock();
+		}
+		return stratum;
+	}
 
-		Arm arm = allocateHelper(participant, stratifiedEnum, openArms, allocations);
-		setStatistic(stratifiedEnum, arm.getName(), "allocations", Double.valueOf(allocations.get(arm) + 1));
-		database.update(trial, participant, arm);
-		return arm;
+	/* Takes a place in the arm if it is below its limit. */
+	private boolean reserve(int arm) {
+		while (true) {
+			int total = armTotals.get(arm);
+			if (total >= compiled.getArmLimit(arm)) {
+				return false;
+			}
+			if (armTotals.compareAndSet(arm, total, total + 1)) {
+				return true;
+			}
+		}
 	}
 
-	protected abstract Arm allocateHelper(Participant participant, String stratifiedEnum, List<Arm> openArms, Map<Arm, Integer> allocations);
+	/* Brings any state of the strategy's own up to date with an allocation it did not make. */
+	protected void recordHelper(Participant participant, int stratum, Arm arm) {
+	}
 
-	protected String getStatisticString(String strataName, String subName, String statisticName) {
-		String result = "";
-		if (!strataName.equals("")) {
-			result += "("+strataName+") ";
+	/**
+	 * Applies the choice allocateHelper just made to the strategy's own state, once a place in the arm has
+	 * been reserved. By default it is counted as recordHelper counts an allocation made elsewhere.
+	 */
+	protected void acceptHelper(Participant participant, int stratum, Arm arm) {
+		recordHelper(participant, stratum, arm);
+	}
+
+	/**
+	 * Adds count allocations to arm, of participants in the stratum with the given levels, to a store of
+	 * counts as this strategy keeps them. Used to rebuild a trial's counts from its participants.
+	 */
+	protected void addAllocations(CounterStore store, int stratum, int[] levels, Arm arm, int count) {
+		store.addAllocations(stratum, arm.getArmOrder(), count);
+	}
+
+	/* Puts every counter changed since the last commit into changed and into the trial's parameters. */
+	public void writeCounters(Map<String, Double> changed) {
+		for (int stratum = 0; stratum < compiled.getStrataCount(); stratum++) {
+			Lock lock = getLock(stratum);
+			lock.lock();
+			try {
+				counters.writeTo(stratum, changed);
+			}
+			finally {
+				lock.unlock();
+			}
 		}
-		if (!subName.equals("")) {
-			result += subName +" ";
+		synchronized (parameters) {
+			parameters.putAll(changed);
 		}
-		return result+statisticName;
 	}
 
-	protected Double getStatistic(String strataName, String subName, String statisticName) {
-		String name = getStatisticString(strataName, subName, statisticName);
-		if (parameters.containsKey(name)) {
-			return parameters.get(name);	
+	/* Stops recording this strategy's allocations in its trial's and method's metrics, as for simulations. */
+	public void disableMetrics() {
+		metricsEnabled = false;
+	}
+
+	private boolean recordsMetrics() {
+		if (!metricsEnabled) {
+			return false;
 		}
-		else {
-			return 0.0;
-		}	
+		if (trialMetrics == null) {
+			// looking them up twice at once is harmless, as both get the same metrics
+			strategyMetrics = AllocationMetrics.forStrategy(trial.getStrategy());
+			trialMetrics = AllocationMetrics.forTrial(trial.getName());
+		}
+		return true;
 	}
 
-	protected void setStatistic(String strataName, String subName, String statisticName, Double value) {
-		String name = getStatisticString(strataName, subName, statisticName);
-		parameters.put(name, value);
+	public DataManager getDatabase() {
+		return database;
 	}
+
+	protected Lock getLock(int stratum) {
+		return locks[stratum % locks.length];
+	}
+
+	/* Approximate heap used by the strategy and the trial it allocates for, in bytes. */
+	public long estimateSize() {
+		return compiled.estimateSize() + counters.estimateSize();
+	}
+
+	/**
+	 * Commits allocations to the journal instead of the database. The journal's replicator brings the
+	 * database up to date later.
+	 */
+	public void setJournal(AllocationJournal journal) {
+		this.journal = journal;
+	}
+
+	private void commit(int stratum, Participant participant, Arm arm) throws PersistenceException {
+		Map<String, Double> changed = new HashMap<String, Double>();
+		counters.writeTo(stratum, changed);
+		boolean savingSeed = seedUnsaved;
+		if (savingSeed) {
+			changed.put(SEED_PARAMETER, (double) seed);
+		}
+
+		if (journal != null) {
+			journal.append(trial.getName(), participant, compiled.getStrataName(stratum), arm, changed);
+		}
+		else {
+			database.update(trial, participant, arm, changed);
+		}
+
+		if (savingSeed) {
+			seedUnsaved = false;
+		}
+
+		// shared by every stratum
+		synchronized (parameters) {
+			parameters.putAll(changed);
+		}
+	}
+
+	/**
+	 * Chooses an arm for a participant in the given stratum id. allocations holds the number of participants
+	 * already in each arm across the whole trial, indexed by arm order, for checking arm limits. Called with the stratum's lock held, so
+	 * implementations may freely use that stratum's counters but must not share other mutable state.
+	 *
+	 * Only the stratum's random stream may be advanced here. The choice may lose its place in the arm to
+	 * another stratum and be made again, so the counters are only changed in acceptHelper.
+	 */
+	protected abstract Arm allocateHelper(Participant participant, int stratum, List<Arm> openArms, int[] allocations);
 }
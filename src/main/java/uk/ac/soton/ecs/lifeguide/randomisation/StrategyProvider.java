@@ -0,0 +1,19 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import uk.ac.soton.ecs.lifeguide.randomisation.exception.*;
+
+/**
+ * Makes the strategies of one allocation method. Providers are found with java.util.ServiceLoader, so
+ * another jar can add a method by listing its provider in
+ * META-INF/services/uk.ac.soton.ecs.lifeguide.randomisation.StrategyProvider.
+ */
+public interface StrategyProvider {
+
+	/* The name trial definitions give as their "method". */
+	public String getName();
+
+	/* Checks, when a trial is registered, that its parameters suit this method. */
+	public void validate(Trial trial) throws InvalidTrialException;
+
+	public Strategy create(Trial trial, DataManager database) throws InvalidTrialException;
+}
@@ -0,0 +1,72 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import uk.ac.soton.ecs.lifeguide.randomisation.exception.*;
+
+import java.util.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The allocation methods available to trials, found once from the StrategyProviders on the classpath.
+ */
+public class StrategyRegistry {
+
+	private static final Logger logger = LoggerFactory.getLogger(StrategyRegistry.class);
+
+	private static Map<String, StrategyProvider> providers;
+
+	private static synchronized Map<String, StrategyProvider> getProviders() {
+		if (providers == null) {
+			providers = new TreeMap<String, StrategyProvider>();
+			for (StrategyProvider provider : ServiceLoader.load(StrategyProvider.class)) {
+				if (providers.containsKey(provider.getName())) {
+					logger.warn("Ignoring second provider of allocation method " +provider.getName() +": " +provider.getClass().getName());
+					continue;
+				}
+				providers.put(provider.getName(), provider);
+			}
+		}
+		return providers;
+	}
+
+	public static StrategyProvider getProvider(String method) throws InvalidTrialException {
+		StrategyProvider provider = method == null ? null : getProviders().get(method);
+		if (provider == null) {
+			throw new InvalidTrialException("Allocation method not found: " +method +". Known methods are " +getProviders().keySet() +".");
+		}
+		return provider;
+	}
+
+	/* Checks that a trial is complete enough to allocate with, and that its parameters suit its method. */
+	public static void validate(Trial trial) throws InvalidTrialException {
+		StrategyProvider provider = getProvider(trial.getStrategy());
+
+		if (trial.getArms().isEmpty()) {
+			throw new InvalidTrialException("A trial needs at least one arm.");
+		}
+		for (Arm arm : trial.getArms()) {
+			if (arm.getWeight() <= 0) {
+				throw new InvalidTrialException("Arm " +arm.getName() +" must have a positive weight.");
+			}
+		}
+
+		provider.validate(trial);
+	}
+
+	public static Strategy create(Trial trial, DataManager database) throws InvalidTrialException {
+		return getProvider(trial.getStrategy()).create(trial, database);
+	}
+
+	/* Returns the named parameter, which must be given and lie between min and max inclusive. */
+	public static double getParameter(Trial trial, String name, double min, double max) throws InvalidTrialException {
+		Double value = trial.getParameters().get(name);
+		if (value == null) {
+			throw new InvalidTrialException(trial.getStrategy() +" needs a value for " +name +".");
+		}
+		if (value.isNaN() || value < min || value > max) {
+			throw new InvalidTrialException(name +" must be between " +min +" and " +max +", not " +value +".");
+		}
+		return value;
+	}
+}
@@ -1,12 +1,15 @@
 package uk.ac.soton.ecs.lifeguide.randomisation;
 
 import javax.persistence.*;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 @Entity
 @Table(name = "strata")
 @Inheritance(strategy=InheritanceType.SINGLE_TABLE)
 @DiscriminatorColumn(name="type", discriminatorType=DiscriminatorType.STRING)
 @DiscriminatorValue("discrete")
+@Cache(usage=CacheConcurrencyStrategy.READ_ONLY)
 public class Stratum {
 
 	@Id @GeneratedValue
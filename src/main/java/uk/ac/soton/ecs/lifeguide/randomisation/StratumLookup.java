@@ -0,0 +1,106 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import java.util.*;
+
+/**
+ * Finds the index of the first stratum of a variable that contains a value, without scanning every
+ * stratum or parsing the value more than once.
+ *
+ * Discrete strata are found by hashing their names. The boundaries of every range stratum are sorted
+ * into elementary intervals, each of which records the first range stratum covering it, so a numeric
+ * value is placed with one binary search. This gives the same answer as testing each stratum in
+ * order, even when ranges overlap or leave gaps.
+ */
+public class StratumLookup {
+
+	public static final int NO_STRATUM = -1;
+
+	private final Map<String, Integer> discrete = new HashMap<String, Integer>();
+	private final double[] boundaries;
+	private final int[] intervals;
+	private final boolean hasRanges;
+
+	public StratumLookup(List<Stratum> strata) {
+		SortedSet<Double> points = new TreeSet<Double>();
+		for (int i = 0; i < strata.size(); i++) {
+			Stratum s = strata.get(i);
+			if (s instanceof RangeStratum) {
+				points.add(((RangeStratum) s).getMinimum());
+				points.add(((RangeStratum) s).getMaximum());
+			}
+			else if (!discrete.containsKey(s.getName())) {
+				discrete.put(s.getName(), i);
+			}
+		}
+
+		hasRanges = !points.isEmpty();
+		boundaries = new double[points.size()];
+		int b = 0;
+		for (Double point : points) {
+			boundaries[b++] = point;
+		}
+
+		// interval i holds values in [boundaries[i - 1], boundaries[i]); interval 0 lies below every range
+		intervals = new int[boundaries.length + 1];
+		intervals[0] = NO_STRATUM;
+		for (int i = 1; i < intervals.length; i++) {
+			intervals[i] = NO_STRATUM;
+			double representative = boundaries[i - 1];
+			for (int j = 0; j < strata.size(); j++) {
+				Stratum s = strata.get(j);
+				if (s instanceof RangeStratum && contains((RangeStratum) s, representative)) {
+					intervals[i] = j;
+					break;
+				}
+			}
+		}
+	}
+
+	public int indexOf(String value) {
+		if (value == null) {
+			return NO_STRATUM;
+		}
+
+		Integer exact = discrete.get(value);
+		int result = exact == null ? NO_STRATUM : exact;
+
+		if (hasRanges) {
+			int range = rangeIndexOf(value);
+			if (range != NO_STRATUM && (result == NO_STRATUM || range < result)) {
+				result = range;
+			}
+		}
+		return result;
+	}
+
+	private int rangeIndexOf(String value) {
+		double val;
+		try {
+			val = Double.parseDouble(value);
+		}
+		catch (NumberFormatException e) {
+			return NO_STRATUM;
+		}
+		if (Double.isNaN(val)) {
+			return NO_STRATUM;
+		}
+
+		// number of boundaries <= val
+		int low = 0;
+		int high = boundaries.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (boundaries[mid] <= val) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		return intervals[low];
+	}
+
+	private static boolean contains(RangeStratum s, double val) {
+		return val < s.getMaximum() && val >= s.getMinimum();
+	}
+}
@@ -2,13 +2,23 @@ package uk.ac.soton.ecs.lifeguide.randomisation;
 
 import uk.ac.soton.ecs.lifeguide.randomisation.exception.*;
 import javax.persistence.*;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.annotations.CollectionOfElements;
 import org.hibernate.annotations.MapKey;
+import org.hibernate.annotations.NamedQuery;
 
 import java.util.*;
 
+/*
+ * A trial's definition never changes once registered, so it, its arms, variables and strata are kept in
+ * the second-level cache and a warm load reads only the parameters. Those hold the counters, which change
+ * with every allocation and are written with plain SQL, so they are never cached.
+ */
 @Entity
 @Table(name = "trials")
+@Cache(usage=CacheConcurrencyStrategy.NONSTRICT_READ_WRITE)
+@NamedQuery(name="Trial.byName", query="from Trial where name = :name", cacheable=true)
 public class Trial {
 
 	@Id @GeneratedValue
@@ -27,14 +37,15 @@ public class Trial {
 
 	@OneToMany(mappedBy="trial", cascade = {CascadeType.ALL})
 	@OrderBy("armOrder")
+	@Cache(usage=CacheConcurrencyStrategy.NONSTRICT_READ_WRITE)
 	private List<Arm> arms = new ArrayList<Arm>();
 
 	@OneToMany(mappedBy="trial", cascade = {CascadeType.ALL})
 	@OrderBy("variableOrder")
+	@Cache(usage=CacheConcurrencyStrategy.NONSTRICT_READ_WRITE)
 	private List<Variable> variables = new ArrayList<Variable>();
 
-	@OneToMany(mappedBy="trial", cascade = {CascadeType.ALL})
-	private List<Participant> participants = new ArrayList<Participant>();
+	// participants are deliberately not mapped here; see DataManager for counts, lookups and listings
 
 	@CollectionOfElements(targetElement=java.lang.Double.class)
 	@JoinTable(name="parameters", joinColumns=@JoinColumn(name="trial_id"))
@@ -42,6 +53,12 @@ public class Trial {
 	@Column(name="value") 
 	private Map<String, Double> parameters = new HashMap<String, Double>();
 
+	@Transient
+	private CompiledTrial compiled;
+
+	@Transient
+	private Strategy allocator;
+
 	/* constructor */
     
     public Trial() {}
@@ -52,17 +69,16 @@ public class Trial {
 		arms.add(arm);
 		arm.setArmOrder(arms.indexOf(arm));
 		arm.setTrial(this);
+		compiled = null;
+		allocator = null;
 	}
 
 	public void addVariable(Variable variable) {
 		variables.add(variable);
 		variable.setVariableOrder(variables.indexOf(variable));
 		variable.setTrial(this);
-	}
-
-	public void addParticipant(Participant p) {
-		participants.add(p);
-		p.setTrial(this);
+		compiled = null;
+		allocator = null;
 	}
 
 	public void setDefaultArm(String name) {
@@ -77,11 +93,19 @@ public class Trial {
 		return arms.size();
 	}
 
-	public String getStrata(Participant participant) {
+	/* Built on first use; arms and variables don't change once a trial is loaded. */
+	public CompiledTrial getCompiled() {
+		if (compiled == null) {
+			compiled = new CompiledTrial(this);
+		}
+		return compiled;
+	}
+
+	public String getStrata(Participant participant) throws InvalidUserDataException {
 		String result = "";
 		
 		boolean notFirst = false;
-		for (Variable variable : getVariablesByType("stratification")) {
+		for (Variable variable : getCompiled().getStratificationVariables()) {
 
 			if (notFirst) {
 				result += ", ";
@@ -99,31 +123,7 @@ public class Trial {
 	}
 
 	public List<String> getAllStrata() {
-		List<String> result = new ArrayList<String>();
-		result.add("");
-
-		boolean notFirst = false;
-		for (Variable variable : getVariablesByType("stratification")) {
-			
-			List<String> newResult = new ArrayList<String>();
-
-			for (String strata : result){
-				if (notFirst) {
-					strata += ", ";
-				}
-				else{
-					notFirst = true;
-				}
-				strata += variable.getName();
-
-				for (String stratumName : variable.getAllStratumNames()){
-					newResult.add(strata + " "+stratumName);
-				}
-			}
-
-			result = newResult;
-		}
-		return result;
+		return new ArrayList<String>(getCompiled().getStrataNames());
 	}
 
 	public String toString() {
@@ -161,16 +161,20 @@ public class Trial {
 		return output;
 	}
 
-	public Arm allocate(Participant participant, DataManager database) throws InvalidTrialException, uk.ac.soton.ecs.lifeguide.randomisation.exception.PersistenceException {
-		return Strategy.create(this, database).allocate(participant);
+	public Arm allocate(Participant participant, DataManager database) throws InvalidTrialException, AllocationException, uk.ac.soton.ecs.lifeguide.randomisation.exception.PersistenceException {
+		return getAllocator(database).allocate(participant);
 	}
 
-	public int getTotalWeight() {
-		int weight = 0;
-		for (Arm a: arms) {
-			weight += a.getWeight();
+	/* One strategy per loaded trial and store, so its counters and random state carry over between allocations. */
+	public synchronized Strategy getAllocator(DataManager database) throws InvalidTrialException {
+		if (allocator == null || allocator.getDatabase() != database) {
+			allocator = StrategyRegistry.create(this, database);
 		}
-		return weight;
+		return allocator;
+	}
+
+	public int getTotalWeight() {
+		return getCompiled().getTotalWeight();
 	}
 
 	public List<Variable> getVariablesByType(String type) {
@@ -192,20 +196,17 @@ public class Trial {
 	public void setName(String name) { this.name = name; }
 
 	public String getStrategy() { return strategy; }
-	public void setStrategy(String strategy) { this.strategy = strategy; }
+	public void setStrategy(String strategy) { this.strategy = strategy; allocator = null; }
 
 	public Arm getDefaultArm() { return defaultArm; }
 	public void setDefaultArm(Arm defaultArm) { this.defaultArm = defaultArm; }
 	
 	public List<Arm> getArms() { return arms; }
-	public void setArms(List<Arm> arms) { this.arms = arms; }
+	public void setArms(List<Arm> arms) { this.arms = arms; compiled = null; allocator = null; }
 
 	public List<Variable> getVariables() { return variables; }
-	public void setVariables(List<Variable> variables) { this.variables = variables; }
-
-	public List<Participant> getParticipants() { return participants; }
-	public void setParticipants(List<Participant> participants) { this.participants = participants; }
+	public void setVariables(List<Variable> variables) { this.variables = variables; compiled = null; allocator = null; }
 
 	public Map<String, Double> getParameters() { return parameters; }
-	public void setParameters(Map<String, Double> parameters) { this.parameters = parameters; }
+	public void setParameters(Map<String, Double> parameters) { this.parameters = parameters; allocator = null; }
 }
@@ -0,0 +1,235 @@
+package uk.ac.soton.ecs.lifeguide.randomisation;
+
+import uk.ac.soton.ecs.lifeguide.randomisation.exception.*;
+
+import java.util.*;
+import org.json.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Least recently used cache of loaded trials, keyed by trial name, bounded by a number of entries and by
+ * an estimate of the heap they use. Subclasses say how to load, size and dispose of a value.
+ *
+ * Callers acquire an entry for as long as they use its value and then release it. Entries in use are
+ * never evicted, so the cache may briefly exceed its bounds. A value that has been invalidated, or evicted,
+ * is only disposed of once its last user releases it; until then the trial is not loaded again, so a fresh
+ * value always sees everything committed through the old one.
+ *
+ * Trials are loaded without the cache locked, so a slow load holds up only the callers waiting for that
+ * trial; they wait for it rather than loading it a second time. Values may grow as they are used, so an
+ * entry is sized again each time it is released.
+ */
+public abstract class TrialCache<V> {
+
+	private static final Logger logger = LoggerFactory.getLogger(TrialCache.class);
+
+	private final int maxEntries;
+	private final long maxBytes;
+
+	private final LinkedHashMap<String, Entry<V>> entries = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true);
+	private final Map<String, Entry<V>> draining = new HashMap<String, Entry<V>>();
+	private final Set<String> loading = new HashSet<String>();
+	private long bytes;
+
+	private long hits;
+	private long misses;
+	private long loadFailures;
+	private long evictions;
+	private long invalidations;
+
+	/* A cached value and the number of callers currently using it. */
+	public static class Entry<V> {
+		private final String name;
+		private final V value;
+		private long size;
+		private int users;
+		private boolean removed;
+
+		private Entry(String name, V value, long size) {
+			this.name = name;
+			this.value = value;
+			this.size = size;
+		}
+
+		public String getName() { return name; }
+		public V getValue() { return value; }
+	}
+
+	public TrialCache(int maxEntries, long maxBytes) {
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+	}
+
+	protected abstract V load(String name) throws PersistenceException, InvalidTrialException;
+
+	/* Approximate heap used by a value, in bytes. */
+	protected abstract long sizeOf(V value);
+
+	/* Called once a value has left the cache and has no users. */
+	protected abstract void dispose(String name, V value);
+
+	public Entry<V> acquire(String name) throws PersistenceException, InvalidTrialException {
+		synchronized (this) {
+			Entry<V> e = entries.get(name);
+			if (e != null) {
+				hits++;
+				e.users++;
+				return e;
+			}
+
+			misses++;
+			while (draining.containsKey(name) || loading.contains(name)) {
+				try {
+					wait();
+				}
+				catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new PersistenceException("Interrupted while waiting for " +name +" to be released");
+				}
+				// another caller may have loaded it while we waited
+				e = entries.get(name);
+				if (e != null) {
+					e.users++;
+					return e;
+				}
+			}
+			loading.add(name);
+		}
+
+		V value = null;
+		long size = 0;
+		boolean loaded = false;
+		try {
+			value = load(name);
+			size = sizeOf(value);
+			loaded = true;
+		}
+		catch (PersistenceException ex) {
+			countLoadFailure();
+			throw ex;
+		}
+		catch (InvalidTrialException ex) {
+			countLoadFailure();
+			throw ex;
+		}
+		finally {
+			if (!loaded) {
+				synchronized (this) {
+					loading.remove(name);
+					notifyAll();
+				}
+			}
+		}
+
+		synchronized (this) {
+			loading.remove(name);
+			Entry<V> e = new Entry<V>(name, value, size);
+			e.users = 1;
+			entries.put(name, e);
+			bytes += e.size;
+			evict();
+			notifyAll();
+			return e;
+		}
+	}
+
+	private synchronized void countLoadFailure() {
+		loadFailures++;
+	}
+
+	public synchronized void release(Entry<V> e) {
+		e.users--;
+		if (e.removed) {
+			if (e.users == 0) {
+				drained(e);
+			}
+			return;
+		}
+
+		long size = sizeOf(e.value);
+		if (size != e.size) {
+			bytes += size - e.size;
+			e.size = size;
+			evict();
+		}
+	}
+
+	/* Removes an entry whose value can no longer be trusted. Its trial is loaded afresh on the next acquire. */
+	public synchronized void invalidate(Entry<V> e) {
+		if (!e.removed) {
+			invalidations++;
+			remove(e);
+		}
+	}
+
+	/* Removes every entry, disposing of each as soon as it is released. */
+	public synchronized void clear() {
+		for (Entry<V> e : new ArrayList<Entry<V>>(entries.values())) {
+			remove(e);
+		}
+	}
+
+	private void evict() {
+		Iterator<Entry<V>> i = entries.values().iterator();
+		while ((entries.size() > maxEntries || bytes > maxBytes) && i.hasNext()) {
+			Entry<V> e = i.next();
+			if (e.users > 0) {
+				continue;
+			}
+			i.remove();
+			bytes -= e.size;
+			e.removed = true;
+			evictions++;
+			logger.debug("Evicted trial " +e.name +" from the cache");
+			dispose(e.name, e.value);
+		}
+	}
+
+	private void remove(Entry<V> e) {
+		if (entries.get(e.name) == e) {
+			entries.remove(e.name);
+			bytes -= e.size;
+		}
+		e.removed = true;
+		if (e.users == 0) {
+			dispose(e.name, e.value);
+		}
+		else {
+			draining.put(e.name, e);
+		}
+	}
+
+	private void drained(Entry<V> e) {
+		if (draining.get(e.name) == e) {
+			draining.remove(e.name);
+		}
+		dispose(e.name, e.value);
+		notifyAll();
+	}
+
+	/* statistics */
+
+	public synchronized long getHits() { return hits; }
+	public synchronized long getMisses() { return misses; }
+	public synchronized long getLoadFailures() { return loadFailures; }
+	public synchronized long getEvictions() { return evictions; }
+	public synchronized long getInvalidations() { return invalidations; }
+	public synchronized int getSize() { return entries.size(); }
+	public synchronized long getEstimatedBytes() { return bytes; }
+
+	public synchronized JSONObject getStatistics() {
+		JSONObject json = new JSONObject();
+		json.put("entries", entries.size());
+		json.put("max_entries", maxEntries);
+		json.put("estimated_bytes", bytes);
+		json.put("max_bytes", maxBytes);
+		json.put("hits", hits);
+		json.put("misses", misses);
+		json.put("load_failures", loadFailures);
+		json.put("evictions", evictions);
+		json.put("invalidations", invalidations);
+		return json;
+	}
+}
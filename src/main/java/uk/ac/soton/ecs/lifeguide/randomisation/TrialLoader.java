@@ -13,8 +13,11 @@ public class TrialLoader{
 	private static final int DEFAULT_ARM_LIMIT = Integer.MAX_VALUE;
 
 	public static Trial loadTrial(String filePath) throws InvalidTrialException, FileNotFoundException {
-
 		String jsonString = new Scanner(new File(filePath)).useDelimiter("\\A").next();
+		return parseTrial(jsonString);
+	}
+
+	public static Trial parseTrial(String jsonString) throws InvalidTrialException {
 		JSONObject json = new JSONObject(jsonString);
 
 		Trial t = new Trial();
@@ -107,4 +110,58 @@ public class TrialLoader{
 		t.setParameters(parameters);
 		return t;
 	}
+
+	/* The inverse of parseTrial: a definition that parses back to an equivalent trial, with its current parameters. */
+	public static JSONObject toJSON(Trial trial) {
+		return toJSON(trial, trial.getParameters());
+	}
+
+	public static JSONObject toJSON(Trial trial, Map<String, Double> parameters) {
+		JSONObject json = new JSONObject();
+		json.put("method", trial.getStrategy());
+
+		JSONArray arms = new JSONArray();
+		for (Arm arm : trial.getArms()) {
+			JSONObject armData = new JSONObject();
+			armData.put("name", arm.getName());
+			armData.put("weight", arm.getWeight());
+			armData.put("limit", arm.getMaxParticipants());
+			arms.put(armData);
+		}
+		json.put("arms", arms);
+		if (trial.getDefaultArm() != null) {
+			json.put("default_arm", trial.getDefaultArm().getName());
+		}
+
+		JSONArray variables = new JSONArray();
+		for (Variable variable : trial.getVariables()) {
+			JSONArray strata = new JSONArray();
+			for (Stratum stratum : variable.getStrata()) {
+				JSONObject stratumData = new JSONObject();
+				if (stratum instanceof RangeStratum) {
+					stratumData.put("min", ((RangeStratum) stratum).getMinimum());
+					stratumData.put("max", ((RangeStratum) stratum).getMaximum());
+				}
+				else {
+					stratumData.put("value", stratum.getName());
+				}
+				strata.put(stratumData);
+			}
+
+			JSONObject variableData = new JSONObject();
+			variableData.put("name", variable.getName());
+			if (variable.getType() != null) {
+				variableData.put("type", variable.getType());
+			}
+			variableData.put("priority", variable.getWeight());
+			variableData.put("strata", strata);
+			variables.put(variableData);
+		}
+		json.put("variables", variables);
+
+		for (Map.Entry<String, Double> parameter : parameters.entrySet()) {
+			json.put(parameter.getKey(), parameter.getValue().doubleValue());
+		}
+		return json;
+	}
 }
@@ -1,10 +1,15 @@
 package uk.ac.soton.ecs.lifeguide.randomisation;
 
+import uk.ac.soton.ecs.lifeguide.randomisation.exception.InvalidUserDataException;
+
 import java.util.*;
 import javax.persistence.*;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 @Entity
 @Table(name = "variables")
+@Cache(usage=CacheConcurrencyStrategy.READ_ONLY)
 public class Variable {
 
 	@Id @GeneratedValue
@@ -25,11 +30,15 @@ public class Variable {
 	private double weight;
 
 	@OneToMany(mappedBy="variable", cascade = {CascadeType.ALL})
+	@Cache(usage=CacheConcurrencyStrategy.NONSTRICT_READ_WRITE)
 	private List<Stratum> strata = new ArrayList<Stratum>();
 
 	@Column(name="variable_order")
 	int variableOrder;
 
+	@Transient
+	private StratumLookup lookup;
+
 	/* constructors */
 
 	public Variable() {
@@ -48,13 +57,24 @@ public class Variable {
 		}
 	}
 
-	public String getStratumNameForValue(String value) {
-		for (Stratum s : strata) {
-			if (s.inStratum(value)) {
-				return s.getName();
-			}
+	public String getStratumNameForValue(String value) throws InvalidUserDataException {
+		return strata.get(getStratumIndex(value)).getName();
+	}
+
+	public int getStratumIndex(String value) throws InvalidUserDataException {
+		int index = getStratumIndexForValue(value);
+		if (index == StratumLookup.NO_STRATUM) {
+			throw new InvalidUserDataException("Value '" +value +"' does not fit any stratum of " +name +".", name);
+		}
+		return index;
+	}
+
+	/* Returns StratumLookup.NO_STRATUM if the value fits no stratum. */
+	public int getStratumIndexForValue(String value) {
+		if (lookup == null) {
+			lookup = new StratumLookup(strata);
 		}
-		return null;
+		return lookup.indexOf(value);
 	}
 
 	public List<String> getAllStratumNames() {
@@ -85,7 +105,7 @@ public class Variable {
 	public void setWeight(double weight) { this.weight = weight; }
 
 	public List<Stratum> getStrata() { return strata; }
-	public void setStrata(List<Stratum> strata) { this.strata = strata; }
+	public void setStrata(List<Stratum> strata) { this.strata = strata; lookup = null; }
 
 	public int getVariableOrder() { return variableOrder; }
 	public void setVariableOrder(int variableOrder) { this.variableOrder = variableOrder; }